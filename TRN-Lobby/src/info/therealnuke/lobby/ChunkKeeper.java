@@ -0,0 +1,244 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+/**
+ * Keeps loaded the chunks where players are teleported, so a teleport never
+ * waits for a chunk to be read from disk. The chunks around the spawn points
+ * are always kept. Sign destinations are kept while they are popular: when
+ * there are too many, the least used one is released.
+ * <p>
+ * Everything here runs on the main thread.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class ChunkKeeper implements Listener {
+
+    private final Main plugin;
+    // How many reasons each chunk has to stay loaded.
+    private final HashMap<ChunkKey, Integer> kept;
+    private final HashSet<ChunkKey> spawnChunks;
+    // Sign destinations in least recently used order, with their use count.
+    private final LinkedHashMap<ChunkKey, Integer> destinations;
+
+    private static class ChunkKey {
+
+        private final UUID world;
+        private final int x;
+        private final int z;
+
+        private ChunkKey(UUID world, int x, int z) {
+            this.world = world;
+            this.x = x;
+            this.z = z;
+        }
+
+        private static ChunkKey of(Location location) {
+            return new ChunkKey(location.getWorld().getUID(),
+                    location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey other = (ChunkKey) obj;
+            return x == other.x && z == other.z && world.equals(other.world);
+        }
+
+        @Override
+        public int hashCode() {
+            return (x * 31 + z) * 31 + world.hashCode();
+        }
+    }
+
+    public ChunkKeeper(Main plugin) {
+        this.plugin = plugin;
+        this.kept = new HashMap<>();
+        this.spawnChunks = new HashSet<>();
+        this.destinations = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public void init() {
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        keepSpawnPoints();
+    }
+
+    public void finish() {
+        HandlerList.unregisterAll(this);
+        kept.clear();
+        spawnChunks.clear();
+        destinations.clear();
+    }
+
+    /**
+     * Keeps the chunks around the spawn points, releasing the ones of the
+     * spawn points that no longer exist. Called when they change.
+     */
+    public void keepSpawnPoints() {
+        int radius = plugin.getCfg().getKeepChunksRadius();
+        HashSet<ChunkKey> previous = new HashSet<>(spawnChunks);
+        spawnChunks.clear();
+        for (Location spawn : plugin.getCfg().getSpawnPoints()) {
+            ChunkKey center = ChunkKey.of(spawn);
+            for (int x = -radius; x <= radius; x++) {
+                for (int z = -radius; z <= radius; z++) {
+                    ChunkKey key = new ChunkKey(center.world, center.x + x, center.z + z);
+                    if (spawnChunks.add(key)) {
+                        keep(key);
+                    }
+                }
+            }
+        }
+        for (ChunkKey key : previous) {
+            release(key);
+        }
+    }
+
+    /**
+     * Counts a teleport to a sign destination, keeping its chunk loaded.
+     *
+     * @param destination
+     */
+    public void touchDestination(Location destination) {
+        int max = plugin.getCfg().getKeepChunksDestinations();
+        if (destination == null || destination.getWorld() == null) {
+            return;
+        }
+        ChunkKey key = ChunkKey.of(destination);
+        Integer uses = destinations.get(key);
+        if (uses != null) {
+            destinations.put(key, uses + 1);
+            return;
+        }
+        if (max == 0) {
+            return;
+        }
+        if (destinations.size() >= max) {
+            releaseLeastUsed();
+        }
+        destinations.put(key, 1);
+        keep(key);
+    }
+
+    /**
+     * Releases the destination with less uses, the least recently used one
+     * if there is a tie. The uses of the others are halved, so destinations
+     * popular long ago can be released too.
+     */
+    private void releaseLeastUsed() {
+        ChunkKey leastUsed = null;
+        int minUses = Integer.MAX_VALUE;
+        for (Map.Entry<ChunkKey, Integer> entry : destinations.entrySet()) {
+            if (entry.getValue() < minUses) {
+                minUses = entry.getValue();
+                leastUsed = entry.getKey();
+            }
+            entry.setValue(Math.max(1, entry.getValue() / 2));
+        }
+        if (leastUsed != null) {
+            destinations.remove(leastUsed);
+            release(leastUsed);
+        }
+    }
+
+    private void keep(ChunkKey key) {
+        Integer count = kept.get(key);
+        kept.put(key, count == null ? 1 : count + 1);
+        World world = Bukkit.getWorld(key.world);
+        if (count == null && world != null && !world.isChunkLoaded(key.x, key.z)) {
+            world.loadChunk(key.x, key.z);
+        }
+    }
+
+    private void release(ChunkKey key) {
+        Integer count = kept.get(key);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            kept.put(key, count - 1);
+        } else {
+            kept.remove(key);
+            World world = Bukkit.getWorld(key.world);
+            if (world != null && world.isChunkLoaded(key.x, key.z)) {
+                world.unloadChunkRequest(key.x, key.z);
+            }
+        }
+    }
+
+    /**
+     * Forgets the destinations of the signs that are no longer there.
+     */
+    public void clearDestinations() {
+        for (Iterator<ChunkKey> it = destinations.keySet().iterator(); it.hasNext();) {
+            release(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Stops the server from unloading the kept chunks.
+     *
+     * @param e The event
+     */
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.HIGHEST)
+    public void onChunkUnload(ChunkUnloadEvent e) {
+        if (isKept(e.getChunk())) {
+            e.setCancelled(true);
+        }
+    }
+
+    /**
+     * Checks if a chunk is kept loaded for teleports.
+     *
+     * @param chunk
+     * @return
+     */
+    public boolean isKept(Chunk chunk) {
+        return kept.containsKey(new ChunkKey(chunk.getWorld().getUID(),
+                chunk.getX(), chunk.getZ()));
+    }
+
+    /**
+     * Gets the number of chunks kept loaded.
+     *
+     * @return
+     */
+    public int size() {
+        return kept.size();
+    }
+}
@@ -19,25 +19,21 @@
 package info.therealnuke.lobby;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
 import net.md_5.bungee.api.ChatColor;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
-import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
-import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.entity.Player;
-import org.bukkit.event.EventHandler;
-import org.bukkit.event.EventPriority;
-import org.bukkit.event.Listener;
-import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 
 /**
  *
  * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
  */
-public class CommandManager implements Listener, CommandExecutor {
+public class CommandManager implements CommandExecutor {
 
     private final Main plugin;
 
@@ -55,31 +51,34 @@ public class CommandManager implements Listener, CommandExecutor {
         plugin.getCommand("logout").setExecutor(this);
         plugin.getCommand("changepassword").setExecutor(this);
 
-        if (plugin.getCfg().overrideSpawnCmd()) {
-            if (plugin.getCfg().isSpawnPointsSet()) {
-                plugin.getServer().getPluginManager().registerEvents(this, plugin);
-            } else {
-                plugin.logMsg(ChatColor.RED
-                        + "Configuration error: override-spawn-cmd "
-                        + "is set but there is no configured spawn points.");
-            }
+        if (plugin.getCfg().overrideSpawnCmd() && !plugin.getCfg().isSpawnPointsSet()) {
+            plugin.logMsg(ChatColor.RED
+                    + "Configuration error: override-spawn-cmd "
+                    + "is set but there is no configured spawn points.");
         }
 
     }
 
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.HIGHEST)
-    public void onCommand(final PlayerCommandPreprocessEvent e) {
-        if (isSpawnCommand(e.getMessage())) {
-            e.setCancelled(true);
-            final Location spawnPoint = plugin.getCfg().getNextSpawnPoint();
-            // Teleports player to spawn in the next tic.
-            Bukkit.getScheduler().runTask(plugin, new Runnable() {
-
-                public void run() {
-                    e.getPlayer().teleport(spawnPoint);
-                }
-            });
+    /**
+     * Runs the overridden /spawn command, found by the EventListener.
+     *
+     * @param player
+     */
+    public void sendToSpawn(final Player player) {
+        final Location spawnPoint = plugin.getCfg().getNextSpawnPoint(player);
+        if (spawnPoint == null) {
+            if (plugin.getCfg().isSpawnPointsSet()) {
+                plugin.getText().sendTextMessage(player, Message.LOBBY_FULL);
+            }
+            return;
         }
+        // Teleports player to spawn in the next tic.
+        Bukkit.getScheduler().runTask(plugin, new Runnable() {
+
+            public void run() {
+                player.teleport(spawnPoint);
+            }
+        });
     }
 
     /**
@@ -107,7 +106,6 @@ public class CommandManager implements Listener, CommandExecutor {
                         if (!plugin.getPm().isRegistered(player)) {
                             if (validatePassword(args[0], player)) {
                                 plugin.getPm().register(player, args[0]);
-                                plugin.getText().sendRegSuccessMsg(player);
                             }
                         } else {
                             plugin.getText().sendAlreadyRegMsg(player);
@@ -146,8 +144,7 @@ public class CommandManager implements Listener, CommandExecutor {
                                 plugin.getText().sendCPNotLogMsg(player);
                             } else {
                                 if (validatePassword(args[0], player)) {
-                                    plugin.getPm().register(player, args[0]);
-                                    plugin.getText().sendCPSuccessMsg(player);
+                                    plugin.getPm().changePassword(player, args[0]);
                                 }
                             }
                         }
@@ -170,35 +167,75 @@ public class CommandManager implements Listener, CommandExecutor {
                     switch (args[0]) {
 
                         case "reload":
-                            try {
-                                plugin.getCfg().reload();
-                                plugin.sendMessage(cs, ChatColor.GREEN
-                                        + "Configuration reloaded.");
-                            } catch (IOException | InvalidConfigurationException ex) {
-                                plugin.alert("Error reloading plugin configuration: "
-                                        + ex.getMessage());
+                            // The files are read out of the main thread.
+                            plugin.getCfg().reload(new Runnable() {
+
+                                public void run() {
+                                    try {
+                                        plugin.applyConfig();
+                                        plugin.sendMessage(cs, ChatColor.GREEN
+                                                + "Configuration reloaded.");
+                                    } catch (IOException ex) {
+                                        plugin.alert("Error reloading plugin configuration: "
+                                                + ex.getMessage());
+                                    }
+                                }
+                            });
+                            break;
+
+                        case "accounts":
+                            if (args.length == 2) {
+                                findAccounts(cs, args[1]);
+                            } else {
+                                plugin.sendMessage(cs, ChatColor.RED
+                                        + "You must to specify an IP address.");
+                            }
+                            break;
+
+                        case "throttle":
+                            List<String> stats = plugin.getPm().getThrottleStats();
+                            if (stats.isEmpty()) {
+                                plugin.sendMessage(cs, ChatColor.YELLOW
+                                        + "Login throttling is disabled.");
+                            }
+                            for (String line : stats) {
+                                plugin.sendMessage(cs, line);
+                            }
+                            break;
+
+                        case "cache":
+                            plugin.sendMessage(cs, plugin.getPm().getCacheStats());
+                            plugin.sendMessage(cs, plugin.getPm().getPendingJoins()
+                                    + " players waiting to join the lobby.");
+                            plugin.sendMessage(cs, plugin.getRegistry().size()
+                                    + " players in the lobby.");
+                            for (LobbyInstance instance : plugin.getCfg().getInstances()) {
+                                plugin.sendMessage(cs, "  " + instance.getWorld().getName()
+                                        + ": " + instance.getPlayers() + "/"
+                                        + plugin.getCfg().getInstanceSoftCap() + "/"
+                                        + plugin.getCfg().getInstanceHardCap());
+                            }
+                            plugin.sendMessage(cs, plugin.getChunkKeeper().size()
+                                    + " chunks kept loaded for teleports.");
+                            if (plugin.getCfg().isStaticLobby()) {
+                                plugin.sendMessage(cs, plugin.getStaticLobby().getUnloaded()
+                                        + " unloads requested outside the lobby area.");
                             }
                             break;
 
                         case "addspawnpoint":
                             if (player != null) {
-                                World lobbyWorld = plugin.getCfg().getLobbyWorld();
-                                if (lobbyWorld != null
-                                        && !lobbyWorld.equals(player.getWorld())) {
-                                    plugin.sendMessage(cs, ChatColor.RED
-                                            + "You cannot add a spawnpoint in "
-                                            + "a different world than the first added.");
-                                } else {
-                                    boolean kickAll = !plugin.getCfg().isSpawnPointsSet();
-                                    plugin.getCfg().addSpawnPoint(player.getLocation());
-                                    int x = player.getLocation().getBlockX();
-                                    int y = player.getLocation().getBlockY();
-                                    int z = player.getLocation().getBlockZ();
-                                    plugin.sendMessage(cs, "Spawnpoint added at "
-                                            + "X=" + x + ", Y=" + y + ", Z=" + z);
-                                    if (kickAll && plugin.getCfg().isEnhanceSecurityEnabled()) {
-                                        plugin.getPm().kickAllPlayers();
-                                    }
+                                // A spawn point in a new world adds a lobby instance.
+                                boolean kickAll = !plugin.getCfg().isSpawnPointsSet();
+                                plugin.getCfg().addSpawnPoint(player.getLocation());
+                                plugin.applyLayout();
+                                int x = player.getLocation().getBlockX();
+                                int y = player.getLocation().getBlockY();
+                                int z = player.getLocation().getBlockZ();
+                                plugin.sendMessage(cs, "Spawnpoint added at "
+                                        + "X=" + x + ", Y=" + y + ", Z=" + z);
+                                if (kickAll && plugin.getCfg().isEnhanceSecurityEnabled()) {
+                                    plugin.getPm().kickAllPlayers();
                                 }
                             } else {
                                 sendNPGMsg(cs);
@@ -206,12 +243,11 @@ public class CommandManager implements Listener, CommandExecutor {
                             break;
                         case "sign":
                             if (player != null) {
-                                World lobbyWorld = plugin.getCfg().getLobbyWorld();
-                                if (lobbyWorld != null
-                                        && !lobbyWorld.equals(player.getWorld())) {
+                                if (plugin.getCfg().isSpawnPointsSet()
+                                        && !plugin.getCfg().isLobbyWorld(player.getWorld())) {
                                     plugin.sendMessage(cs, ChatColor.RED
                                             + "You cannot manage a sign in "
-                                            + "a different world than the lobby's world.");
+                                            + "a world that is not a lobby.");
                                 } else {
                                     if (args.length != 2 || (!args[1].equalsIgnoreCase("add")
                                             && !args[1].equalsIgnoreCase("set-dest"))) {
@@ -268,10 +304,40 @@ public class CommandManager implements Listener, CommandExecutor {
         return !showHelp;
     }
 
-    private static boolean isSpawnCommand(String message) {
-        String lowercaseMessage = message.toLowerCase();
-        return (lowercaseMessage.equals("/spawn")
-                || lowercaseMessage.startsWith("/spawn "));
+    /**
+     * Lists the accounts last used from an IP address. The storage is read in
+     * an async task.
+     */
+    private void findAccounts(final CommandSender cs, final String address) {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                List<UUID> accounts = null;
+                String error = null;
+                try {
+                    accounts = plugin.getPm().findAccountsByAddress(address);
+                } catch (IOException ex) {
+                    error = ex.getMessage();
+                }
+                final List<UUID> found = accounts;
+                final String errorMsg = error;
+                Bukkit.getScheduler().runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (found == null) {
+                            plugin.sendMessage(cs, ChatColor.RED
+                                    + "Unable to search accounts: " + errorMsg);
+                        } else {
+                            plugin.sendMessage(cs, found.size()
+                                    + " accounts from " + address + ":");
+                            for (UUID uuid : found) {
+                                plugin.sendMessage(cs, uuid.toString());
+                            }
+                        }
+                    }
+                });
+            }
+        });
     }
 
     private void sendNPGMsg(CommandSender cs) {
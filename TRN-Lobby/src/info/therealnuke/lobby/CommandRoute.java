@@ -0,0 +1,78 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+/**
+ * What the lobby does with a command typed by a player, found in the command
+ * trie built by the ConfigurationManager.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class CommandRoute {
+
+    private final String command;
+    private final String alias;
+    private final boolean unlogged;
+    private final boolean spawn;
+
+    /**
+     * @param command The command run.
+     * @param alias The name typed if it is an alias, or null.
+     * @param unlogged If players may run it before they log in.
+     * @param spawn If it is the overridden /spawn command.
+     */
+    public CommandRoute(String command, String alias, boolean unlogged,
+            boolean spawn) {
+        this.command = command;
+        this.alias = alias;
+        this.unlogged = unlogged;
+        this.spawn = spawn;
+    }
+
+    public boolean isUnlogged() {
+        return unlogged;
+    }
+
+    public boolean isSpawn() {
+        return spawn;
+    }
+
+    public boolean isAlias() {
+        return alias != null;
+    }
+
+    /**
+     * Replaces the alias of a command line by its command.
+     *
+     * @param line The command line typed with the alias.
+     * @return
+     */
+    public String expand(String line) {
+        return "/" + command + line.substring(1 + alias.length());
+    }
+
+    /**
+     * Gets a route to the same command, now also the overridden /spawn.
+     *
+     * @return
+     */
+    CommandRoute withSpawn() {
+        return new CommandRoute(command, alias, unlogged, true);
+    }
+}
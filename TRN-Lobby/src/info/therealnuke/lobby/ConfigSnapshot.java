@@ -0,0 +1,231 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import info.therealnuke.tools.CommandTrie;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.md_5.bungee.api.ChatColor;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+
+/**
+ * The settings of config.yml, read and checked once. It never changes, so it
+ * can be built out of the main thread and read from any thread; a reload
+ * builds a new one and the ConfigurationManager swaps it in.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+final class ConfigSnapshot {
+
+    final String prefix;
+    final boolean overrideSpawnCmd;
+    final boolean handleInventory;
+    final long onboardingBudget;
+    final int playerCacheSize;
+    final long playerCacheTtl;
+    final double spawnRadius;
+    final long permissionCacheTtl;
+    final int instanceSoftCap;
+    final int instanceHardCap;
+    final double voidRescueY;
+    final int keepChunksRadius;
+    final int keepChunksDestinations;
+    final boolean staticLobby;
+    final long staticLobbyTime;
+    final int staticLobbyRadius;
+    final long staticLobbyUnloadPeriod;
+    final boolean keepWorldSpawn;
+    final boolean creatureSpawn;
+    final boolean blockIgnite;
+    final boolean pistonWorks;
+    final boolean enhanceSecurity;
+    final boolean autologin;
+    final long sessionLifetime;
+    final List<String> disallowedPass;
+    final CommandTrie<CommandRoute> commandRoutes;
+    final File passwordDirFile;
+    final File deniedPasswordFile;
+    final int hashIterations;
+    final int hashThreads;
+    final int hashQueueSize;
+    final boolean throttleEnabled;
+    final int throttleStripes;
+    final int loginIpBurst;
+    final double loginIpRate;
+    final int loginAccountBurst;
+    final double loginAccountRate;
+    final boolean joinIpEnabled;
+    final int joinIpBurst;
+    final double joinIpRate;
+    final String storageType;
+    final String sqlUrl;
+    final String sqlUser;
+    final String sqlPassword;
+    final int sqlPoolSize;
+    final int sqlBatchSize;
+    final boolean watchFiles;
+    final long watchDebounce;
+    // Mistakes found while reading, to be reported on the main thread.
+    final List<String> problems;
+
+    /**
+     * Reads the settings. It only reads the given configuration, so it can
+     * be called from any thread.
+     *
+     * @param fc The config.yml file, with the default values.
+     * @param dataFolder The plugin folder.
+     */
+    ConfigSnapshot(FileConfiguration fc, File dataFolder) {
+        List<String> found = new ArrayList<>();
+
+        // Gets the prefix value.
+        prefix = ChatColor.translateAlternateColorCodes('&', fc.getString("prefix", ""));
+        overrideSpawnCmd = fc.getBoolean("override-spawn-cmd");
+
+        // Gets handle-inventory from config.yml file.
+        handleInventory = fc.getBoolean("handle-inventory");
+
+        // Gets the time per tick given to players who join.
+        onboardingBudget = TimeUnit.MICROSECONDS.toNanos(Math.max(100,
+                (long) (fc.getDouble("join-queue.tick-budget-ms", 5) * 1000)));
+
+        // Gets the limits of the player cache.
+        playerCacheSize = Math.max(16, fc.getInt("player-cache.max-size", 1000));
+        playerCacheTtl = TimeUnit.MINUTES.toMillis(
+                Math.max(1, fc.getInt("player-cache.offline-minutes", 30)));
+
+        // Gets the distance at which players count for a spawn point.
+        spawnRadius = Math.max(1, fc.getDouble("spawn-crowd-radius", 16));
+
+        // Gets how long the permission decisions of players are remembered.
+        permissionCacheTtl = TimeUnit.SECONDS.toMillis(
+                Math.max(0, fc.getInt("permission-cache-seconds", 5)));
+
+        // Gets the players each lobby instance should have and can have.
+        instanceHardCap = Math.max(1, fc.getInt("lobby-instances.hard-cap", 200));
+        instanceSoftCap = Math.max(1, Math.min(instanceHardCap,
+                fc.getInt("lobby-instances.soft-cap", 100)));
+
+        // Gets the height under which lobby players are rescued.
+        voidRescueY = fc.getDouble("void-rescue-y", 0);
+
+        // Gets the chunks kept loaded for teleports.
+        keepChunksRadius = Math.max(0, fc.getInt("keep-chunks.spawn-radius", 1));
+        keepChunksDestinations = Math.max(0, fc.getInt("keep-chunks.sign-destinations", 8));
+
+        // Gets the static lobby mode settings.
+        staticLobby = fc.getBoolean("static-lobby.enabled", false);
+        staticLobbyTime = fc.getLong("static-lobby.time", 6000);
+        staticLobbyRadius = Math.max(0, fc.getInt("static-lobby.area-radius", 8));
+        staticLobbyUnloadPeriod = Math.max(1, fc.getInt("static-lobby.unload-seconds", 30)) * 20L;
+        keepWorldSpawn = fc.getBoolean("static-lobby.keep-world-spawn", false);
+
+        // Gets allow/deny options from config.yml
+        creatureSpawn = fc.getBoolean("allow.creature-spawn");
+        blockIgnite = fc.getBoolean("allow.block-ignite");
+        pistonWorks = fc.getBoolean("allow.piston-works");
+
+        enhanceSecurity = fc.getBoolean("enhance-security.active");
+        autologin = fc.getBoolean("enhance-security.autologin");
+        sessionLifetime = TimeUnit.HOURS.toMillis(
+                Math.max(1, fc.getInt("enhance-security.session-hours", 24)));
+        disallowedPass = Collections.unmodifiableList(new ArrayList<>(
+                fc.getStringList("enhance-security.denied-password-words")));
+        commandRoutes = loadCommandRoutes(fc, overrideSpawnCmd, found);
+        passwordDirFile = new File(dataFolder,
+                fc.getString("enhance-security.password-dir", "users"));
+        deniedPasswordFile = new File(dataFolder,
+                fc.getString("enhance-security.denied-password-file", "denied-passwords.txt"));
+        hashIterations = Math.max(1000, fc.getInt("enhance-security.hashing.iterations", 20000));
+        hashThreads = Math.max(1, fc.getInt("enhance-security.hashing.threads", 2));
+        hashQueueSize = Math.max(1, fc.getInt("enhance-security.hashing.queue-size", 64));
+
+        // Gets the login throttling limits.
+        throttleEnabled = fc.getBoolean("enhance-security.throttle.enabled", true);
+        throttleStripes = Math.max(16, fc.getInt("enhance-security.throttle.stripes", 4096));
+        loginIpBurst = fc.getInt("enhance-security.throttle.login-per-ip.burst", 10);
+        loginIpRate = fc.getDouble("enhance-security.throttle.login-per-ip.per-minute", 5);
+        loginAccountBurst = fc.getInt("enhance-security.throttle.login-per-account.burst", 5);
+        loginAccountRate = fc.getDouble("enhance-security.throttle.login-per-account.per-minute", 3);
+        joinIpEnabled = fc.getBoolean("enhance-security.throttle.join-per-ip.enabled", false);
+        joinIpBurst = fc.getInt("enhance-security.throttle.join-per-ip.burst", 10);
+        joinIpRate = fc.getDouble("enhance-security.throttle.join-per-ip.per-minute", 10);
+
+        // Gets the credential storage backend.
+        storageType = fc.getString("enhance-security.storage.type", "log").toLowerCase();
+        String url = fc.getString("enhance-security.storage.sql.url", "");
+        if (url.isEmpty()) {
+            url = "jdbc:sqlite:" + new File(dataFolder,
+                    "credentials.db").getAbsolutePath();
+        }
+        sqlUrl = url;
+        sqlUser = fc.getString("enhance-security.storage.sql.user", "");
+        sqlPassword = fc.getString("enhance-security.storage.sql.password", "");
+        sqlPoolSize = Math.max(1, fc.getInt("enhance-security.storage.sql.pool-size", 4));
+        sqlBatchSize = Math.max(1, fc.getInt("enhance-security.storage.sql.batch-size", 100));
+
+        // Gets whether the files are reloaded when they are saved.
+        watchFiles = fc.getBoolean("watch-files.enabled", true);
+        watchDebounce = Math.max(50, fc.getLong("watch-files.debounce-ms", 500));
+
+        problems = Collections.unmodifiableList(found);
+    }
+
+    /**
+     * Builds the trie of the commands the lobby handles: those players may
+     * run before they log in, their aliases and the overridden /spawn.
+     */
+    private static CommandTrie<CommandRoute> loadCommandRoutes(
+            FileConfiguration fc, boolean overrideSpawnCmd, List<String> problems) {
+        LinkedHashMap<String, CommandRoute> routes = new LinkedHashMap<>();
+        ConfigurationSection unlogged
+                = fc.getConfigurationSection("enhance-security.unlogged-commands");
+        if (unlogged == null) {
+            routes.put("register", new CommandRoute("register", null, true, false));
+            routes.put("login", new CommandRoute("login", null, true, false));
+        } else {
+            for (String command : unlogged.getKeys(false)) {
+                routes.put(command.toLowerCase(), new CommandRoute(command, null, true, false));
+                for (String alias : unlogged.getStringList(command)) {
+                    routes.put(alias.toLowerCase(), new CommandRoute(command, alias, true, false));
+                }
+            }
+        }
+        if (overrideSpawnCmd) {
+            CommandRoute route = routes.get("spawn");
+            routes.put("spawn", route == null
+                    ? new CommandRoute("spawn", null, false, true) : route.withSpawn());
+        }
+        CommandTrie<CommandRoute> trie = new CommandTrie<>();
+        for (Map.Entry<String, CommandRoute> route : routes.entrySet()) {
+            try {
+                trie.put(route.getKey(), route.getValue());
+            } catch (IllegalArgumentException ex) {
+                problems.add(ex.getMessage());
+            }
+        }
+        return trie;
+    }
+}
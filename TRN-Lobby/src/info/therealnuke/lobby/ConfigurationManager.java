@@ -18,11 +18,18 @@
  */
 package info.therealnuke.lobby;
 
+import info.therealnuke.tools.CommandTrie;
+import info.therealnuke.tools.FileWatcher;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 import net.md_5.bungee.api.ChatColor;
 import org.bukkit.Bukkit;
@@ -30,8 +37,8 @@ import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
-import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitTask;
 
 /**
@@ -41,30 +48,22 @@ import org.bukkit.scheduler.BukkitTask;
 public class ConfigurationManager {
 
     private final Main plugin;
-    private FileConfiguration fc;
-    private int lastSpawnGiven;
-    private final YamlConfiguration mapCfg;
     private BukkitTask saveControl;
-    private boolean configChanged;
+    private volatile boolean configChanged;
+    // When map.yml was last saved by the plugin, to ignore that change.
+    private volatile long mapSavedAt;
+    private FileWatcher watcher;
+    // Whether every lobby instance was found full, to warn only once.
+    private volatile boolean lobbyFull;
     File mapConfigFile;
 
-    // Variable to be loaded from configuration files.
-    private String prefix;
-    private World lobbyWorld;
-    private final List<Location> spawnPoints;
-    private boolean handleInventory;
-    private boolean blockIgnite;
-    private boolean creatureSpawn;
-    private boolean pistonWorks;
-    private boolean enhanceSecurity;
-    private boolean autologin;
-    File passwordDirFile;
-    private List<String> disallowedPass;
+    // Settings of config.yml and spawn points of map.yml. Both are replaced
+    // as a whole, never changed, so they can be read from any thread.
+    private volatile ConfigSnapshot settings;
+    private volatile LobbyLayout layout;
 
     public ConfigurationManager(Main plugin) {
         this.plugin = plugin;
-        spawnPoints = new ArrayList<>();
-        mapCfg = new YamlConfiguration();
         configChanged = false;
         mapConfigFile = new File(plugin.getDataFolder(), "map.yml");
     }
@@ -78,42 +77,60 @@ public class ConfigurationManager {
      */
     public void load() throws IOException,
             FileNotFoundException, InvalidConfigurationException {
+        ConfigSnapshot loaded = readSettings();
+        publish(loaded, buildLayout(readMap(), loaded.spawnRadius));
+        startSaveControl();
+    }
+
+    /**
+     * Reads config.yml, with the default values of the plugin. It only
+     * touches files, so it can be called out of the main thread.
+     */
+    private ConfigSnapshot readSettings() throws IOException,
+            FileNotFoundException, InvalidConfigurationException {
 
         // Save the default configuration file if it does not exists.
-        if (true != new File(plugin.getDataFolder(), "config.yml").exists()) {
+        File configFile = new File(plugin.getDataFolder(), "config.yml");
+        if (true != configFile.exists()) {
             plugin.saveDefaultConfig();
         }
 
-        fc = plugin.getConfig();
-
-        // Gets the prefix value.
-        prefix = ChatColor.translateAlternateColorCodes('&', fc.getString("prefix"));
+        YamlConfiguration fc = new YamlConfiguration();
+        fc.load(configFile);
+        YamlConfiguration defaults = new YamlConfiguration();
+        try (Reader reader = new InputStreamReader(
+                plugin.getResource("config.yml"), StandardCharsets.UTF_8)) {
+            defaults.load(reader);
+        }
+        fc.setDefaults(defaults);
 
-        // Gets handle-inventory from config.yml file.
-        handleInventory = fc.getBoolean("handle-inventory");
+        ConfigSnapshot loaded = new ConfigSnapshot(fc, plugin.getDataFolder());
+        if (loaded.enhanceSecurity) {
+            loaded.passwordDirFile.mkdir();
+        }
+        return loaded;
+    }
 
+    /**
+     * Reads map.yml. It only touches files, so it can be called out of the
+     * main thread.
+     */
+    private YamlConfiguration readMap() throws IOException,
+            FileNotFoundException, InvalidConfigurationException {
         if (!mapConfigFile.exists()) {
             plugin.saveResource(mapConfigFile.getName(), true);
         }
-
-        // Gets allow/deny options from config.yml
-        creatureSpawn = fc.getBoolean("creature-spawn");
-        blockIgnite = fc.getBoolean("block-ignite");
-        pistonWorks = fc.getBoolean("piston-works");
-
-        enhanceSecurity = fc.getBoolean("enhance-security.active");
-        autologin = fc.getBoolean("enhance-security.autologin");
-        disallowedPass = fc.getStringList("enhance-security.denied-password-words");
-
-        if (enhanceSecurity) {
-            String passwordDir = fc.getString("enhance-security.password-dir");
-            passwordDirFile = new File(plugin.getDataFolder(), passwordDir);
-            passwordDirFile.mkdir();
-        }
-
+        YamlConfiguration mapCfg = new YamlConfiguration();
         mapCfg.load(mapConfigFile);
+        return mapCfg;
+    }
 
-        // Gets all map spawn points.
+    /**
+     * Gets all map spawn points. Worlds are looked up, so it must be called
+     * on the main thread.
+     */
+    private LobbyLayout buildLayout(YamlConfiguration mapCfg, double spawnRadius) {
+        final List<Location> spawnPoints = new ArrayList<>();
         final ConfigurationSection csSpawns
                 = mapCfg.getConfigurationSection("spawnPoints");
         if (csSpawns != null) {
@@ -128,13 +145,147 @@ public class ConfigurationManager {
                     }
                 }
             });
-            lastSpawnGiven = 0;
-            if (!spawnPoints.isEmpty()) {
-                lobbyWorld = spawnPoints.get(0).getWorld();
+        }
+        return new LobbyLayout(spawnPoints, spawnRadius);
+    }
+
+    /**
+     * Adds to a layout read from map.yml the spawn points added with
+     * addSpawnPoint while the file was being read, which it does not have.
+     * Must be called on the main thread.
+     *
+     * @param read The layout in use when the read started.
+     * @param built The layout of the file.
+     * @param spawnRadius
+     * @return
+     */
+    private LobbyLayout withSpawnsAddedSince(LobbyLayout read, LobbyLayout built,
+            double spawnRadius) {
+        for (Location spawn : layout.spawnPoints) {
+            if (!read.spawnPoints.contains(spawn)
+                    && !built.spawnPoints.contains(spawn)) {
+                built = built.withSpawnPoint(spawn, spawnRadius);
+                configChanged = true;
             }
         }
+        return built;
+    }
 
-        startSaveControl();
+    /**
+     * Swaps in new settings and spawn points. Must be called on the main
+     * thread.
+     */
+    private void publish(ConfigSnapshot loaded, LobbyLayout built) {
+        publishSettings(loaded);
+        layout = built;
+    }
+
+    /**
+     * Swaps in new settings. Must be called on the main thread.
+     */
+    private void publishSettings(ConfigSnapshot loaded) {
+        ConfigSnapshot previous = settings;
+        settings = loaded;
+        for (String problem : loaded.problems) {
+            plugin.alert(problem);
+        }
+        if (previous == null || previous.watchFiles != loaded.watchFiles
+                || previous.watchDebounce != loaded.watchDebounce) {
+            restartWatcher();
+        }
+    }
+
+    /**
+     * Starts watching config.yml, map.yml and text.yml, if it is enabled,
+     * so each one is reloaded alone when it is saved.
+     */
+    private void restartWatcher() {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+        if (!settings.watchFiles) {
+            return;
+        }
+        watcher = new FileWatcher(plugin.getDataFolder(),
+                Arrays.asList("config.yml", mapConfigFile.getName(), "text.yml"),
+                settings.watchDebounce, new FileWatcher.Listener() {
+
+                    @Override
+                    public void changed(String fileName) {
+                        try {
+                            if (fileName.equals("config.yml")) {
+                                reloadSettings();
+                            } else if (fileName.equals(mapConfigFile.getName())) {
+                                reloadMap();
+                            } else {
+                                plugin.getText().init();
+                                plugin.logMsg(ChatColor.GREEN + "text.yml reloaded.");
+                            }
+                        } catch (IOException | InvalidConfigurationException ex) {
+                            plugin.alert("Error reloading " + fileName + ": "
+                                    + ex.getMessage());
+                        }
+                    }
+                });
+        try {
+            watcher.start();
+        } catch (IOException ex) {
+            plugin.alert("Unable to watch the configuration files: " + ex.getMessage());
+            watcher = null;
+        }
+    }
+
+    /**
+     * Reloads config.yml alone, after it was saved. It is read in the thread
+     * of the watcher. The spawn points are only grouped again if the crowd
+     * radius changed.
+     */
+    private void reloadSettings() throws IOException,
+            FileNotFoundException, InvalidConfigurationException {
+        final ConfigSnapshot loaded = readSettings();
+        Bukkit.getScheduler().runTask(plugin, new Runnable() {
+
+            public void run() {
+                double spawnRadius = settings.spawnRadius;
+                publishSettings(loaded);
+                if (loaded.spawnRadius != spawnRadius) {
+                    layout = new LobbyLayout(layout.spawnPoints, loaded.spawnRadius);
+                }
+                try {
+                    plugin.applyConfig();
+                    plugin.logMsg(ChatColor.GREEN + "config.yml reloaded.");
+                } catch (IOException ex) {
+                    plugin.alert("Error reloading config.yml: " + ex.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Reloads map.yml alone, after it was saved. It is read in the thread of
+     * the watcher and the spawn points are only replaced if they changed.
+     */
+    private void reloadMap() throws IOException,
+            FileNotFoundException, InvalidConfigurationException {
+        if (mapConfigFile.lastModified() == mapSavedAt) {
+            // Saved by the plugin itself.
+            return;
+        }
+        final LobbyLayout read = layout;
+        final YamlConfiguration mapCfg = readMap();
+        Bukkit.getScheduler().runTask(plugin, new Runnable() {
+
+            public void run() {
+                LobbyLayout built = withSpawnsAddedSince(read,
+                        buildLayout(mapCfg, settings.spawnRadius), settings.spawnRadius);
+                if (!built.spawnPoints.equals(layout.spawnPoints)) {
+                    layout = built;
+                    plugin.applyLayout();
+                    plugin.logMsg(ChatColor.GREEN + "map.yml reloaded.");
+                }
+            }
+        });
     }
 
     private void startSaveControl() {
@@ -143,12 +294,12 @@ public class ConfigurationManager {
 
                 public void run() {
                     if (configChanged) {
+                        configChanged = false;
                         try {
                             saveConfiguration();
                         } catch (IOException ex) {
                             plugin.alert("Error saving configuration: " + ex.getMessage());
                         }
-                        configChanged = false;
                     }
                 }
             }, 1200, 1200);
@@ -156,77 +307,239 @@ public class ConfigurationManager {
     }
 
     /**
-     * Reloads the plugin configuration.
+     * Reloads the plugin configuration. The files are read out of the main
+     * thread and the new configuration is swapped in on the main thread,
+     * where done is then run. Errors are alerted and the current
+     * configuration is kept.
      *
-     * @throws java.io.IOException
-     * @throws java.io.FileNotFoundException
-     * @throws org.bukkit.configuration.InvalidConfigurationException
+     * @param done What to update once the new configuration is in use.
      */
-    public void reload() throws IOException,
-            FileNotFoundException, InvalidConfigurationException {
-        plugin.reloadConfig();
-        load();
+    public void reload(final Runnable done) {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+
+            public void run() {
+                try {
+                    // Spawn points added from now on are merged when the
+                    // new layout is published.
+                    final LobbyLayout read = layout;
+                    // Spawn points not saved yet would be lost otherwise.
+                    if (configChanged) {
+                        configChanged = false;
+                        saveSpawns(read);
+                    }
+                    final ConfigSnapshot loaded = readSettings();
+                    final YamlConfiguration mapCfg = readMap();
+                    Bukkit.getScheduler().runTask(plugin, new Runnable() {
+
+                        public void run() {
+                            publish(loaded, withSpawnsAddedSince(read,
+                                    buildLayout(mapCfg, loaded.spawnRadius),
+                                    loaded.spawnRadius));
+                            done.run();
+                        }
+                    });
+                } catch (IOException | InvalidConfigurationException ex) {
+                    plugin.alert("Error reloading plugin configuration: "
+                            + ex.getMessage());
+                }
+            }
+        });
     }
 
     /**
-     * Gets a String from the config.yml file.
+     * Gets the plugin prefix from the config.yml file.
      *
-     * @param keyName The key name of the string.
-     * @return The String value.
+     * @return A coloured String with the prefix.
      */
-    public String getString(String keyName) {
-        return fc.getString(keyName);
+    public String getPrefix() {
+        return settings.prefix;
     }
 
     /**
-     * Gets a Boolean from the config.yml file.
+     * Gets the override-spawn-cmd value from the config.yml file.
      *
-     * @param keyName The key name of the boolean.
-     * @return true if the value is true, false if it is false or was not found.
+     * @return true or false.
      */
-    public boolean getBoolean(String keyName) {
-        return fc.getBoolean(keyName);
+    public boolean overrideSpawnCmd() {
+        return settings.overrideSpawnCmd;
     }
 
     /**
-     * Gets the plugin prefix from the config.yml file.
+     * Get the least crowded spawn point for a player. Players already in a
+     * lobby instance get one of that instance, the others one of the
+     * instance chosen by getNextInstance.
      *
-     * @return A coloured String with the prefix.
+     * @param player
+     * @return A Location or Null if there is no configured locations or
+     * every lobby instance is full.
      */
-    public String getPrefix() {
-        return prefix;
+    public Location getNextSpawnPoint(Player player) {
+        LobbyLayout current = layout;
+        LobbyInstance instance = current.instanceByWorld.get(player.getWorld());
+        if (instance == null) {
+            instance = getNextInstance(current);
+        }
+        if (instance == null) {
+            return null;
+        }
+        return current.spawnSelector.next(player.getUniqueId(),
+                instance.getFirstSpawn(), instance.getLastSpawn());
     }
 
     /**
-     * Gets the override-spawn-cmd value from the config.yml file.
+     * Tells if a player can be sent to the lobby: it is already in a lobby
+     * instance or some instance is below the hard cap.
      *
-     * @return true or false.
+     * @param player
+     * @return
      */
-    public boolean overrideSpawnCmd() {
-        return fc.getBoolean("override-spawn-cmd");
+    public boolean hasRoomFor(Player player) {
+        LobbyLayout current = layout;
+        return current.instanceByWorld.containsKey(player.getWorld())
+                || getNextInstance(current) != null;
     }
 
     /**
-     * Get the next spawn point.
+     * Gets the lobby instance for a player who goes to the lobby. Instances
+     * are filled in order up to the soft cap, so few of them are in use;
+     * once all are over it the least crowded one below the hard cap is
+     * chosen.
      *
-     * @return A Location or Null if there is no configured locations.
+     * @return The instance or null if there is none or all are full.
      */
-    public Location getNextSpawnPoint() {
-        Location nextSpawn = null;
-        if (isSpawnPointsSet()) {
-            if (lastSpawnGiven < spawnPoints.size()) {
-                nextSpawn = spawnPoints.get(lastSpawnGiven++);
-            } else {
-                lastSpawnGiven = 0;
-                nextSpawn = spawnPoints.get(lastSpawnGiven);
+    private LobbyInstance getNextInstance(LobbyLayout current) {
+        ConfigSnapshot cfg = settings;
+        LobbyInstance leastCrowded = null;
+        for (LobbyInstance instance : current.instances) {
+            if (instance.getPlayers() < cfg.instanceSoftCap) {
+                lobbyFull = false;
+                return instance;
+            }
+            if (leastCrowded == null
+                    || instance.getPlayers() < leastCrowded.getPlayers()) {
+                leastCrowded = instance;
             }
         }
-        return nextSpawn;
+        if (leastCrowded != null && leastCrowded.getPlayers() >= cfg.instanceHardCap) {
+            if (!lobbyFull) {
+                lobbyFull = true;
+                plugin.logMsg(ChatColor.RED + "Every lobby instance is full, "
+                        + "joining players are refused.");
+            }
+            return null;
+        }
+        lobbyFull = false;
+        return leastCrowded;
+    }
+
+    /**
+     * Gets the trie of the commands the lobby handles.
+     *
+     * @return
+     */
+    public CommandTrie<CommandRoute> getCommandRoutes() {
+        return settings.commandRoutes;
+    }
+
+    /**
+     * Gets the configured spawn points.
+     *
+     * @return A read only list.
+     */
+    public List<Location> getSpawnPoints() {
+        return layout.spawnPoints;
+    }
+
+    /**
+     * Gets the height under which lobby players are taken back to a spawn
+     * point.
+     *
+     * @return
+     */
+    public double getVoidRescueY() {
+        return settings.voidRescueY;
+    }
+
+    /**
+     * Gets the chunks kept loaded around each spawn point, in each direction.
+     *
+     * @return
+     */
+    public int getKeepChunksRadius() {
+        return settings.keepChunksRadius;
+    }
+
+    /**
+     * Gets the number of sign destinations whose chunk is kept loaded.
+     *
+     * @return
+     */
+    public int getKeepChunksDestinations() {
+        return settings.keepChunksDestinations;
+    }
+
+    /**
+     * Checks if the lobby world is set up to simulate as little as possible.
+     *
+     * @return
+     */
+    public boolean isStaticLobby() {
+        return settings.staticLobby;
+    }
+
+    /**
+     * Gets the time of the day the static lobby is frozen at.
+     *
+     * @return
+     */
+    public long getStaticLobbyTime() {
+        return settings.staticLobbyTime;
+    }
+
+    /**
+     * Gets the chunks around the spawn points that make the static lobby
+     * area, in each direction.
+     *
+     * @return
+     */
+    public int getStaticLobbyRadius() {
+        return settings.staticLobbyRadius;
+    }
+
+    /**
+     * Gets the ticks between unloads of the chunks outside the static lobby
+     * area.
+     *
+     * @return
+     */
+    public long getStaticLobbyUnloadPeriod() {
+        return settings.staticLobbyUnloadPeriod;
+    }
+
+    public boolean isKeepWorldSpawn() {
+        return settings.keepWorldSpawn;
+    }
+
+    /**
+     * Gets the milliseconds a permission decision of a player is remembered.
+     *
+     * @return
+     */
+    public long getPermissionCacheTtl() {
+        return settings.permissionCacheTtl;
+    }
+
+    /**
+     * Gets the counter of players near each spawn point.
+     *
+     * @return
+     */
+    public SpawnSelector getSpawnSelector() {
+        return layout.spawnSelector;
     }
 
     public void addSpawnPoint(Location loc) {
-        spawnPoints.add(loc);
-        lobbyWorld = loc.getWorld();
+        layout = layout.withSpawnPoint(loc, settings.spawnRadius);
         configChanged = true;
     }
 
@@ -236,16 +549,53 @@ public class ConfigurationManager {
      * @return true if there is at least one configured spawn point.
      */
     public boolean isSpawnPointsSet() {
-        return (spawnPoints != null && !spawnPoints.isEmpty());
+        return !layout.spawnPoints.isEmpty();
+    }
+
+    /**
+     * Checks if a world is one of the lobby instances.
+     *
+     * @param world
+     * @return
+     */
+    public boolean isLobbyWorld(World world) {
+        return layout.instanceByWorld.containsKey(world);
     }
 
     /**
-     * Get the configured world for the Lobby.
+     * Gets the worlds of the lobby instances, compared by identity.
      *
-     * @return The world of the lobby or null if not loaded.
+     * @return A read only set.
      */
-    public World getLobbyWorld() {
-        return lobbyWorld;
+    public Set<World> getLobbyWorlds() {
+        return layout.lobbyWorlds;
+    }
+
+    /**
+     * Gets the lobby instance of a world.
+     *
+     * @param world
+     * @return The instance or null if the world is not a lobby.
+     */
+    public LobbyInstance getInstance(World world) {
+        return layout.instanceByWorld.get(world);
+    }
+
+    /**
+     * Gets the lobby instances, in the order they are filled.
+     *
+     * @return A read only list.
+     */
+    public List<LobbyInstance> getInstances() {
+        return layout.instances;
+    }
+
+    public int getInstanceSoftCap() {
+        return settings.instanceSoftCap;
+    }
+
+    public int getInstanceHardCap() {
+        return settings.instanceHardCap;
     }
 
     public Location getLocation(ConfigurationSection section) {
@@ -262,11 +612,9 @@ public class ConfigurationManager {
         yaw = (float) section.getDouble("yaw");
         pitch = (float) section.getDouble("pitch");
         String worldName = section.getString("world");
-        if (lobbyWorld == null) {
-            lobbyWorld = plugin.getServer().getWorld(worldName);
-        }
-        if (lobbyWorld != null) {
-            result = new Location(lobbyWorld, x, y, z, yaw, pitch);
+        World world = plugin.getServer().getWorld(worldName);
+        if (world != null) {
+            result = new Location(world, x, y, z, yaw, pitch);
         } else {
             plugin.alert("Invalid configured World for location: " + worldName);
         }
@@ -282,29 +630,35 @@ public class ConfigurationManager {
         section.set("pitch", location.getPitch());
     }
 
-    private void saveSpawns() throws IOException {
+    private void saveSpawns(LobbyLayout saved) throws IOException {
         YamlConfiguration spawns = new YamlConfiguration();
         int spawnId = 0;
-        for (Location spawn : spawnPoints) {
+        for (Location spawn : saved.spawnPoints) {
             spawns.set("spawnPoints." + spawnId + ".world", "dummy");
             setLocation(spawns.getConfigurationSection("spawnPoints." + spawnId), spawn);
             spawnId++;
         }
         spawns.save(mapConfigFile);
+        mapSavedAt = mapConfigFile.lastModified();
     }
 
     private void saveConfiguration() throws IOException {
-        saveSpawns();
+        saveSpawns(layout);
         plugin.alert("Configuration autosaved.");
     }
 
     /**
-     * Stops the configuration save monitor and save current configuration.
+     * Stops the configuration save monitor and the file watcher and save
+     * current configuration.
      *
      * @throws java.io.IOException
      */
     public void finish() throws IOException {
         saveControl.cancel();
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
         saveConfiguration();
     }
 
@@ -314,7 +668,7 @@ public class ConfigurationManager {
      * @return True if allowed, false if denied
      */
     public boolean blockIgniteAllowed() {
-        return blockIgnite;
+        return settings.blockIgnite;
     }
 
     /**
@@ -323,7 +677,7 @@ public class ConfigurationManager {
      * @return True if allowed, false if denied
      */
     public boolean creatureSpawnAllowed() {
-        return creatureSpawn;
+        return settings.creatureSpawn;
     }
 
     /**
@@ -332,27 +686,161 @@ public class ConfigurationManager {
      * @return True if allowed, false if denied
      */
     public boolean isPistonWorks() {
-        return pistonWorks;
+        return settings.pistonWorks;
     }
 
     public boolean isHandleInventory() {
-        return handleInventory;
+        return settings.handleInventory;
+    }
+
+    /**
+     * Gets the time per tick spent sending joined players to the lobby, in
+     * nanoseconds.
+     *
+     * @return
+     */
+    public long getOnboardingBudget() {
+        return settings.onboardingBudget;
+    }
+
+    /**
+     * Gets the maximum number of players kept in memory, online or not.
+     *
+     * @return
+     */
+    public int getPlayerCacheSize() {
+        return settings.playerCacheSize;
+    }
+
+    /**
+     * Gets how long an offline player is kept in memory, in milliseconds.
+     *
+     * @return
+     */
+    public long getPlayerCacheTtl() {
+        return settings.playerCacheTtl;
     }
 
     public boolean isEnhanceSecurityEnabled() {
-        return enhanceSecurity;
+        return settings.enhanceSecurity;
     }
 
     public File getPasswordDirFile() {
-        return passwordDirFile;
+        return settings.passwordDirFile;
     }
 
     public boolean isAutologinEnabled() {
-        return autologin;
+        return settings.autologin;
+    }
+
+    /**
+     * Gets how long a player stays logged in by autologin, in milliseconds.
+     *
+     * @return
+     */
+    public long getSessionLifetime() {
+        return settings.sessionLifetime;
     }
 
     public List<String> getDisallowedPassList() {
-        return disallowedPass;
+        return settings.disallowedPass;
+    }
+
+    /**
+     * Gets the plain text list of common passwords, compiled at startup.
+     *
+     * @return
+     */
+    public File getDeniedPasswordFile() {
+        return settings.deniedPasswordFile;
+    }
+
+    public int getHashIterations() {
+        return settings.hashIterations;
+    }
+
+    public int getHashThreads() {
+        return settings.hashThreads;
+    }
+
+    public int getHashQueueSize() {
+        return settings.hashQueueSize;
+    }
+
+    /**
+     * Gets the credential storage backend: log, yaml or sql.
+     *
+     * @return
+     */
+    public String getStorageType() {
+        return settings.storageType;
+    }
+
+    public String getSqlUrl() {
+        return settings.sqlUrl;
+    }
+
+    public String getSqlUser() {
+        return settings.sqlUser;
+    }
+
+    public String getSqlPassword() {
+        return settings.sqlPassword;
+    }
+
+    public int getSqlPoolSize() {
+        return settings.sqlPoolSize;
+    }
+
+    public int getSqlBatchSize() {
+        return settings.sqlBatchSize;
+    }
+
+    public boolean isThrottleEnabled() {
+        return settings.throttleEnabled;
+    }
+
+    public int getThrottleStripes() {
+        return settings.throttleStripes;
+    }
+
+    public int getLoginIpBurst() {
+        return settings.loginIpBurst;
+    }
+
+    /**
+     * Gets the login attempts given back to an IP address each minute.
+     *
+     * @return
+     */
+    public double getLoginIpRate() {
+        return settings.loginIpRate;
+    }
+
+    public int getLoginAccountBurst() {
+        return settings.loginAccountBurst;
+    }
+
+    public double getLoginAccountRate() {
+        return settings.loginAccountRate;
+    }
+
+    /**
+     * Checks if connections are throttled by IP address, which is off by
+     * default because players behind a proxy share one address.
+     *
+     * @return
+     */
+    public boolean isJoinThrottleEnabled() {
+        return settings.joinIpEnabled;
+    }
+
+    public int getJoinIpBurst() {
+        return settings.joinIpBurst;
+    }
+
+    public double getJoinIpRate() {
+        return settings.joinIpRate;
     }
 
 }
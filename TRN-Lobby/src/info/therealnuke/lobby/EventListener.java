@@ -18,8 +18,12 @@
  */
 package info.therealnuke.lobby;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import net.md_5.bungee.api.ChatColor;
-import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -47,16 +51,19 @@ import org.bukkit.event.entity.ItemSpawnEvent;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryOpenEvent;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.player.PlayerDropItemEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerLoginEvent;
 import org.bukkit.event.player.PlayerPickupItemEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.event.weather.WeatherChangeEvent;
-import org.bukkit.scheduler.BukkitTask;
 
 /**
  *
@@ -65,12 +72,18 @@ import org.bukkit.scheduler.BukkitTask;
 public class EventListener implements Listener {
 
     private final Main plugin;
-    private BukkitTask fallControl;
     private final PlayerManager pm;
+    private final PermissionCache perms;
+    private final List<Listener> features;
+    // The lobby worlds when the features were registered. Worlds are
+    // compared by identity, the server has one object per loaded world.
+    private Set<World> lobbyWorlds;
 
     public EventListener(Main plugin) {
         this.plugin = plugin;
         pm = plugin.getPm();
+        perms = plugin.getPermissionCache();
+        features = new ArrayList<>();
     }
 
     /**
@@ -79,374 +92,487 @@ public class EventListener implements Listener {
     public void init() {
         // Register this object in the plugin manager.
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        reload();
+    }
 
-        // Rescues players who fall into the void.
-        if (fallControl == null) {
-            fallControl = Bukkit.getScheduler().runTaskTimer(plugin, new Runnable() {
-
-                @Override
-                public void run() {
-                    if (plugin.getCfg().getLobbyWorld() != null) {
-                        for (Player player : plugin.getCfg()
-                                .getLobbyWorld().getPlayers()) {
-                            if (player.getLocation().getBlockY() < 0) {
-                                player.teleport(plugin.getCfg().getNextSpawnPoint());
-                            }
-                        }
-                    }
-                }
-            }, 20, 20);
+    /**
+     * Registers only the feature listeners the configuration needs, so the
+     * server does not call the plugin for events it would ignore. Called
+     * when the configuration or the lobby world changes.
+     */
+    public void reload() {
+        unregisterFeatures();
+        perms.clear();
+        lobbyWorlds = plugin.getCfg().getLobbyWorlds();
+        if (lobbyWorlds.isEmpty()) {
+            return;
+        }
+        features.add(new MapProtection());
+        features.add(new EntityProtection());
+        features.add(new EditProtection());
+        if (!plugin.getCfg().creatureSpawnAllowed()) {
+            features.add(new CreatureSpawnDenial());
+        }
+        if (!plugin.getCfg().blockIgniteAllowed()) {
+            features.add(new BlockIgniteDenial());
+        }
+        if (!plugin.getCfg().isPistonWorks()) {
+            features.add(new PistonDenial());
+        }
+        if (plugin.getCfg().isEnhanceSecurityEnabled()) {
+            features.add(new LoginGuard());
+        }
+        if (plugin.getCfg().isEnhanceSecurityEnabled()
+                || plugin.getCfg().overrideSpawnCmd()) {
+            features.add(new CommandGuard());
+        }
+        for (Listener feature : features) {
+            plugin.getServer().getPluginManager().registerEvents(feature, plugin);
+        }
+    }
+
+    private void unregisterFeatures() {
+        for (Listener feature : features) {
+            HandlerList.unregisterAll(feature);
         }
+        features.clear();
     }
 
     /**
-     * Stops the Bukkit Scheduler.
+     * Unregisters the Events.
      */
     public void finish() {
-        fallControl.cancel();
+        unregisterFeatures();
         HandlerList.unregisterAll(this);
     }
 
     /**
      * *********** Map related Events ************
      */
-    /**
-     * Cancel raining in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(priority = EventPriority.LOWEST)
-    public void onWeatherChange(WeatherChangeEvent e) {
-        if (e.getWorld().equals(plugin.getCfg().getLobbyWorld())
-                && e.toWeatherState()) {
-            e.setCancelled(true);
+    private class MapProtection implements Listener {
+
+        /**
+         * Cancel raining in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void onWeatherChange(WeatherChangeEvent e) {
+            if (lobbyWorlds.contains(e.getWorld()) && e.toWeatherState()) {
+                e.setCancelled(true);
+            }
         }
-    }
 
-    /**
-     * Cancel Explosions in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(priority = EventPriority.LOWEST)
-    public void onExplosion(ExplosionPrimeEvent e) {
-        if (e.getEntity().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+        /**
+         * Cancel Explosions in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void onExplosion(ExplosionPrimeEvent e) {
+            if (lobbyWorlds.contains(e.getEntity().getWorld())) {
+                e.setCancelled(true);
+            }
         }
-    }
 
-    /**
-     * Cancel Block Physics in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(priority = EventPriority.LOWEST)
-    public void onPhysicsEvent(BlockPhysicsEvent e) {
-        if (e.getBlock().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+        /**
+         * Cancel Block Physics in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void onPhysicsEvent(BlockPhysicsEvent e) {
+            if (lobbyWorlds.contains(e.getBlock().getWorld())) {
+                e.setCancelled(true);
+            }
         }
-    }
 
-    /**
-     * Cancel Creature Spawn if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(priority = EventPriority.LOWEST)
-    public void onCreatureSpawn(CreatureSpawnEvent e) {
-        if (plugin.getCfg().creatureSpawnAllowed()
-                && e.getEntity().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+        /**
+         * Cancel Leaves Decay in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onLeavesDecay(LeavesDecayEvent e) {
+            if (lobbyWorlds.contains(e.getBlock().getWorld())) {
+                e.setCancelled(true);
+            }
         }
-    }
 
-    /**
-     * Cancel Block Ignite if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(priority = EventPriority.LOWEST)
-    public void onBlockIgnite(BlockIgniteEvent e) {
-        if (plugin.getCfg().blockIgniteAllowed()
-                && e.getBlock().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+        /**
+         * Cancel Item Spawn in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true)
+        public void onItemSpawnEvent(ItemSpawnEvent e) {
+            if (lobbyWorlds.contains(e.getEntity().getWorld())) {
+                e.setCancelled(true);
+            }
         }
-    }
 
-    /**
-     * Cancel Piston Extend if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(priority = EventPriority.LOWEST)
-    public void onPiston(BlockPistonExtendEvent e) {
-        if (plugin.getCfg().isPistonWorks() && plugin.getCfg().getLobbyWorld()
-                .equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+        /**
+         * Cancel Block Move in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true)
+        public void onBlockFromToEvent(BlockFromToEvent e) {
+            if (lobbyWorlds.contains(e.getBlock().getWorld())) {
+                e.setCancelled(true);
+            }
         }
     }
 
     /**
-     * Cancel Piston Retract if they are not allowed in Lobby World
-     *
-     * @param e The event
+     * Registered when creature spawn is not allowed.
      */
-    @EventHandler(priority = EventPriority.LOWEST)
-    public void onPiston(BlockPistonRetractEvent e) {
-        if (plugin.getCfg().isPistonWorks() && plugin.getCfg().getLobbyWorld()
-                .equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+    private class CreatureSpawnDenial implements Listener {
+
+        /**
+         * Cancel Creature Spawn in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void onCreatureSpawn(CreatureSpawnEvent e) {
+            if (lobbyWorlds.contains(e.getEntity().getWorld())) {
+                e.setCancelled(true);
+            }
         }
     }
 
     /**
-     * Cancel Leaves Decay in Lobby World
-     *
-     * @param e The event
+     * Registered when block ignite is not allowed.
      */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onLeavesDecay(LeavesDecayEvent e) {
-        if (e.getBlock().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+    private class BlockIgniteDenial implements Listener {
+
+        /**
+         * Cancel Block Ignite in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void onBlockIgnite(BlockIgniteEvent e) {
+            if (lobbyWorlds.contains(e.getBlock().getWorld())) {
+                e.setCancelled(true);
+            }
         }
     }
 
     /**
-     * Cancel Item Spawn in Lobby World
-     *
-     * @param e The event
+     * Registered when pistons are not allowed to work.
      */
-    @EventHandler(ignoreCancelled = true)
-    public void onItemSpawnEvent(ItemSpawnEvent e) {
-        if (e.getEntity().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+    private class PistonDenial implements Listener {
+
+        /**
+         * Cancel Piston Extend in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void onPiston(BlockPistonExtendEvent e) {
+            if (lobbyWorlds.contains(e.getBlock().getWorld())) {
+                e.setCancelled(true);
+            }
         }
-    }
 
-    /**
-     * Cancel Block Move in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = true)
-    public void onBlockFromToEvent(BlockFromToEvent e) {
-        if (e.getBlock().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+        /**
+         * Cancel Piston Retract in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void onPiston(BlockPistonRetractEvent e) {
+            if (lobbyWorlds.contains(e.getBlock().getWorld())) {
+                e.setCancelled(true);
+            }
         }
     }
 
     /**
      * *********** Player related Events ************
      */
-    /**
-     * Cancel Player Combust if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
-    public void onEntityCombust(EntityCombustEvent e) {
-        if (e.getEntity().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+    private class EntityProtection implements Listener {
+
+        /**
+         * Cancel Player Combust in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
+        public void onEntityCombust(EntityCombustEvent e) {
+            if (lobbyWorlds.contains(e.getEntity().getWorld())) {
+                e.setCancelled(true);
+            }
         }
-    }
 
-    /**
-     * Cancel Player Block Event in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
-    public void onEntityBlockForm(EntityBlockFormEvent e) {
-        if (e.getEntity().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+        /**
+         * Cancel Player Block Event in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
+        public void onEntityBlockForm(EntityBlockFormEvent e) {
+            if (lobbyWorlds.contains(e.getEntity().getWorld())) {
+                e.setCancelled(true);
+            }
         }
-    }
 
-    /**
-     * Cancel Entity Damage in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
-    public void onEntityDamageByEntity(EntityDamageByEntityEvent e) {
-        if (e.getEntity().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+        /**
+         * Cancel Entity Damage in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
+        public void onEntityDamageByEntity(EntityDamageByEntityEvent e) {
+            if (lobbyWorlds.contains(e.getEntity().getWorld())) {
+                e.setCancelled(true);
+            }
         }
-    }
 
-    /**
-     * Cancel Entity Damage in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
-    public void onEntityDamage(EntityDamageEvent e) {
-        if (e.getEntity().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+        /**
+         * Cancel Entity Damage in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
+        public void onEntityDamage(EntityDamageEvent e) {
+            if (lobbyWorlds.contains(e.getEntity().getWorld())) {
+                e.setCancelled(true);
+            }
+        }
+
+        /**
+         * Cancel Etities to target in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onEntityTarget(EntityTargetEvent e) {
+            if (lobbyWorlds.contains(e.getEntity().getWorld())) {
+                e.setCancelled(true);
+            }
+        }
+
+        /**
+         * Cancel Hunger in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onFoodLevelChange(FoodLevelChangeEvent e) {
+            if (lobbyWorlds.contains(e.getEntity().getWorld())) {
+                e.setCancelled(true);
+            }
         }
     }
 
     /**
-     * Cancel Player Iteract if they are not allowed in Lobby World
-     *
-     * @param e The event
+     * Players without the edit permission cannot change the lobby. Signs are
+     * handled here too.
      */
-    @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
-    public void onPlayerInteract(PlayerInteractEvent e) {
-        if (e.getPlayer().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            if (!e.getPlayer().hasPermission("trnlobby.edit")) {
-                e.setCancelled(true);
-            }
-            if (e.getAction() == Action.RIGHT_CLICK_BLOCK &&
-                    plugin.getSignManager().isSign(e.getClickedBlock().getLocation())) {
-                if (plugin.getCfg().isEnhanceSecurityEnabled()) {
-                    if (plugin.getPm().isAllowedAction(e.getPlayer())) {
+    private class EditProtection implements Listener {
+
+        /**
+         * Cancel Player Iteract if they are not allowed in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
+        public void onPlayerInteract(PlayerInteractEvent e) {
+            if (lobbyWorlds.contains(e.getPlayer().getWorld())) {
+                if (!perms.has(e.getPlayer(), PermissionCache.EDIT)) {
+                    e.setCancelled(true);
+                }
+                if (e.getAction() == Action.RIGHT_CLICK_BLOCK &&
+                        plugin.getSignManager().isSign(e.getClickedBlock().getLocation())) {
+                    if (plugin.getCfg().isEnhanceSecurityEnabled()) {
+                        if (pm.isAllowedAction(e.getPlayer())) {
+                            plugin.getSignManager().signTeleport(e);
+                        }
+                    } else {
                         plugin.getSignManager().signTeleport(e);
                     }
-                } else {
-                    plugin.getSignManager().signTeleport(e);
                 }
             }
         }
-    }
 
-    /**
-     * Cancel Player Items Drop if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onPlayerDrop(PlayerDropItemEvent e) {
-        if (e.getPlayer().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            if (!e.getPlayer().hasPermission("trnlobby.edit")) {
+        /**
+         * Cancel Player Items Drop if they are not allowed in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onPlayerDrop(PlayerDropItemEvent e) {
+            if (lobbyWorlds.contains(e.getPlayer().getWorld())
+                    && !perms.has(e.getPlayer(), PermissionCache.EDIT)) {
                 e.setCancelled(true);
             }
         }
-    }
 
-    /**
-     * Cancel Player Inteact events if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
-    public void onPlayerInteractEntity(PlayerInteractEntityEvent e) {
-        if (e.getPlayer().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            if (!e.getPlayer().hasPermission("trnlobby.edit")) {
+        /**
+         * Cancel Player Inteact events if they are not allowed in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = false, priority = EventPriority.LOWEST)
+        public void onPlayerInteractEntity(PlayerInteractEntityEvent e) {
+            if (lobbyWorlds.contains(e.getPlayer().getWorld())
+                    && !perms.has(e.getPlayer(), PermissionCache.EDIT)) {
                 e.setCancelled(true);
             }
         }
-    }
 
-    /**
-     * Cancel Block Place events if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onBlockPlaceEvent(BlockPlaceEvent e) {
-        if (e.getPlayer().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            if (!e.getPlayer().hasPermission("trnlobby.edit")) {
+        /**
+         * Cancel Block Place events if they are not allowed in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onBlockPlaceEvent(BlockPlaceEvent e) {
+            if (lobbyWorlds.contains(e.getPlayer().getWorld())
+                    && !perms.has(e.getPlayer(), PermissionCache.EDIT)) {
                 e.setCancelled(true);
             }
         }
-    }
 
-    /**
-     * Cancel Block Break events if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onBlockBreakEvent(BlockBreakEvent e) {
-        if (e.getPlayer().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            if (!e.getPlayer().hasPermission("trnlobby.edit")) {
-                e.setCancelled(true);
-            } else {
-                if (plugin.getSignManager().isSign(e.getBlock().getLocation())) {
-                    plugin.getSignManager().removeSign(e);
+        /**
+         * Cancel Block Break events if they are not allowed in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onBlockBreakEvent(BlockBreakEvent e) {
+            if (lobbyWorlds.contains(e.getPlayer().getWorld())) {
+                if (!perms.has(e.getPlayer(), PermissionCache.EDIT)) {
+                    e.setCancelled(true);
+                } else {
+                    if (plugin.getSignManager().isSign(e.getBlock().getLocation())) {
+                        plugin.getSignManager().removeSign(e);
+                    }
                 }
             }
         }
-    }
 
-    /**
-     * Cancel Block Damage events if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onBlockDamage(BlockDamageEvent e) {
-        if (e.getPlayer().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            if (!e.getPlayer().hasPermission("trnlobby.edit")) {
+        /**
+         * Cancel Block Damage events if they are not allowed in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onBlockDamage(BlockDamageEvent e) {
+            if (lobbyWorlds.contains(e.getPlayer().getWorld())
+                    && !perms.has(e.getPlayer(), PermissionCache.EDIT)) {
                 e.setCancelled(true);
             }
         }
-    }
 
-    /**
-     * Cancel Player items pickup if they are not allowed in Lobby World
-     *
-     * @param e The event
-     */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onPlayerPickupItem(PlayerPickupItemEvent e) {
-        if (e.getPlayer().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            if (!e.getPlayer().hasPermission("trnlobby.edit")) {
+        /**
+         * Cancel Player items pickup if they are not allowed in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onPlayerPickupItem(PlayerPickupItemEvent e) {
+            if (lobbyWorlds.contains(e.getPlayer().getWorld())
+                    && !perms.has(e.getPlayer(), PermissionCache.EDIT)) {
+                e.setCancelled(true);
+            }
+        }
+
+        /**
+         * Cancel Player Inventory events if they are not allowed in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onInventoryOpen(InventoryOpenEvent e) {
+            if (lobbyWorlds.contains(e.getPlayer().getWorld())
+                    && !perms.has(e.getPlayer(), PermissionCache.EDIT)) {
+                e.setCancelled(true);
+            }
+        }
+
+        /**
+         * Cancel Player Inventory events if they are not allowed in Lobby World
+         *
+         * @param e The event
+         */
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onInventoryClick(InventoryClickEvent e) {
+            if (lobbyWorlds.contains(e.getWhoClicked().getWorld())
+                    && !perms.has(e.getWhoClicked(), PermissionCache.EDIT)) {
                 e.setCancelled(true);
             }
         }
     }
 
     /**
-     * Cancel Etities to target in Lobby World
-     *
-     * @param e The event
+     * Players who did not log in cannot chat. Registered only with enhanced
+     * security.
      */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onEntityTarget(EntityTargetEvent e) {
-        if (e.getEntity().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+    private class LoginGuard implements Listener {
+
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onPlayerChat(AsyncPlayerChatEvent e) {
+            if (!pm.isAllowedAction(e.getPlayer())) {
+                e.setCancelled(true);
+            }
         }
     }
 
     /**
-     * Cancel Hunger in Lobby World
-     *
-     * @param e The event
+     * Finds each command once in the command trie: players who did not log
+     * in can only run the allowed commands, aliases are expanded and /spawn
+     * is overridden if configured.
      */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onFoodLevelChange(FoodLevelChangeEvent e) {
-        if (e.getEntity().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            e.setCancelled(true);
+    private class CommandGuard implements Listener {
+
+        @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
+        public void onPlayerCommand(PlayerCommandPreprocessEvent e) {
+            CommandRoute route = plugin.getCfg().getCommandRoutes().match(e.getMessage());
+            if ((route == null || !route.isUnlogged())
+                    && !pm.isAllowedAction(e.getPlayer())) {
+                e.setCancelled(true);
+            } else if (route != null && route.isSpawn()) {
+                e.setCancelled(true);
+                plugin.getCmd().sendToSpawn(e.getPlayer());
+            } else if (route != null && route.isAlias()) {
+                e.setMessage(route.expand(e.getMessage()));
+            }
         }
     }
 
     /**
-     * Cancel Player Inventory events if they are not allowed in Lobby World
+     * Refuses addresses that connect too often, then reads the player
+     * credentials on the async login thread, so they are already in memory
+     * when the player joins.
      *
      * @param e The event
      */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onInventoryOpen(InventoryOpenEvent e) {
-        if (e.getPlayer().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            if (!e.getPlayer().hasPermission("trnlobby.edit")) {
-                e.setCancelled(true);
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onAsyncPreLogin(AsyncPlayerPreLoginEvent e) {
+        if (e.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            if (!pm.tryJoin(e.getAddress())) {
+                e.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER,
+                        plugin.getText().getJoinThrottledMsg());
+            } else if (!pm.prefetchLogin(e.getUniqueId(), e.getAddress())) {
+                e.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER,
+                        plugin.getText().getStorageErrorMsg());
             }
         }
     }
 
     /**
-     * Cancel Player Inventory events if they are not allowed in Lobby World
+     * Drops the prefetched credentials if the login is denied.
      *
      * @param e The event
      */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onInventoryClick(InventoryClickEvent e) {
-        if (e.getWhoClicked().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-            if (!e.getWhoClicked().hasPermission("trnlobby.edit")) {
-                e.setCancelled(true);
-            }
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onLoginEvent(PlayerLoginEvent e) {
+        if (e.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            pm.discardPrefetch(e.getPlayer().getUniqueId());
         }
     }
 
@@ -455,24 +581,21 @@ public class EventListener implements Listener {
      *
      * @param e The event
      */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onLoginEvent(final PlayerLoginEvent e) {
-        Bukkit.getScheduler().runTaskLater(plugin, new Runnable() {
-
-            @Override
-            public void run() {
-                if (plugin.getCfg().isSpawnPointsSet()) {
-                    pm.playerConnect(e.getPlayer());
-                } else {
-                    if (e.getPlayer().hasPermission("trnlobby.admin")) {
-                        plugin.sendMessage(e.getPlayer(),
-                                "No spawnpoint set yet, go to the "
-                                + "lobby world and type: " + ChatColor.ITALIC
-                                + "/trnlobby addspawnpoint");
-                    }
-                }
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerJoin(PlayerJoinEvent e) {
+        plugin.getRegistry().update(e.getPlayer(), e.getPlayer().getWorld());
+        plugin.getTransitions().join(e.getPlayer());
+        if (plugin.getCfg().isSpawnPointsSet()) {
+            pm.playerConnect(e.getPlayer());
+        } else {
+            pm.discardPrefetch(e.getPlayer().getUniqueId());
+            if (e.getPlayer().hasPermission("trnlobby.admin")) {
+                plugin.sendMessage(e.getPlayer(),
+                        "No spawnpoint set yet, go to the "
+                        + "lobby world and type: " + ChatColor.ITALIC
+                        + "/trnlobby addspawnpoint");
             }
-        }, 5);
+        }
     }
 
     /**
@@ -483,55 +606,67 @@ public class EventListener implements Listener {
     @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
     public void onPlayerQuit(PlayerQuitEvent e) {
 
-        if (e.getPlayer().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
+        if (lobbyWorlds.contains(e.getPlayer().getWorld())) {
             pm.returnPlayerStuff(e.getPlayer());
         }
+        pm.playerQuit(e.getPlayer());
+        plugin.getCfg().getSpawnSelector().leave(e.getPlayer().getUniqueId());
+        plugin.getRegistry().update(e.getPlayer(), null);
+        plugin.getTransitions().quit(e.getPlayer());
+        perms.invalidate(e.getPlayer());
 
     }
 
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onPlayerChat(AsyncPlayerChatEvent e) {
-        if (plugin.getCfg().isSpawnPointsSet()
-                && !pm.isAllowedAction(e.getPlayer())) {
-            e.setCancelled(true);
+    /**
+     * Rescues lobby players who fall under the void level, as soon as they
+     * get there. It also keeps the count of players near each spawn point;
+     * only moves to another block are counted.
+     *
+     * @param e The event
+     */
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.HIGHEST)
+    public void onPlayerMove(PlayerMoveEvent e) {
+        Location from = e.getFrom();
+        Location to = e.getTo();
+        if (to.getY() < plugin.getCfg().getVoidRescueY()
+                && plugin.getRegistry().contains(e.getPlayer())) {
+            Location spawn = plugin.getCfg().getNextSpawnPoint(e.getPlayer());
+            if (spawn != null) {
+                e.setTo(spawn);
+            }
+        } else if ((from.getBlockX() != to.getBlockX() || from.getBlockZ() != to.getBlockZ())
+                && plugin.getRegistry().contains(e.getPlayer())) {
+            plugin.getCfg().getSpawnSelector().update(e.getPlayer().getUniqueId(), to);
         }
     }
 
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onPlayerCommand(PlayerCommandPreprocessEvent e) {
-        String toLowerMessage = e.getMessage().toLowerCase();
-        if (!toLowerMessage.startsWith("/register ")
-                && !toLowerMessage.startsWith("/login ")) {
-            if (plugin.getCfg().isSpawnPointsSet()
-                    && !pm.isAllowedAction(e.getPlayer())) {
-                e.setCancelled(true);
-            }
-        }
+    /**
+     * Keeps the registry of lobby players, and gives back their stuff to
+     * the players who left the lobby.
+     *
+     * @param e The event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent e) {
+        plugin.getRegistry().update(e.getPlayer(), e.getPlayer().getWorld());
+        perms.invalidate(e.getPlayer());
+        plugin.getTransitions().changedWorld(e.getPlayer(), e.getFrom());
     }
 
     /**
-     * If player goes back to the original world teleport to it location.
+     * Marks the players going in or out of the lobby. Teleports that do not
+     * change of world or do not involve the lobby are ignored.
      *
      * @param e The event
      */
-    @EventHandler(ignoreCancelled = true, priority = EventPriority.LOWEST)
-    public void onPlayerTeleport(final PlayerTeleportEvent e) {
-        Bukkit.getScheduler().runTaskLater(plugin, new Runnable() {
-
-            @Override
-            public void run() {
-                if (e.getFrom().getWorld().equals(plugin.getCfg().getLobbyWorld())) {
-                    if (e.getTo().getWorld().equals(pm.getSourceWorld(e.getPlayer()))
-                            && !e.getTo().getWorld()
-                            .equals(plugin.getCfg().getLobbyWorld())) {
-                        pm.returnPlayerStuff(e.getPlayer());
-                    } else if (!e.getTo().getWorld()
-                            .equals(plugin.getCfg().getLobbyWorld())) {
-                        pm.returnPlayerStuff(e.getPlayer(), false);
-                    }
-                }
-            }
-        }, 5);
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onPlayerTeleport(PlayerTeleportEvent e) {
+        World from = e.getFrom().getWorld();
+        World to = e.getTo().getWorld();
+        if (lobbyWorlds.contains(from) || lobbyWorlds.contains(to)) {
+            plugin.getCfg().getSpawnSelector().update(e.getPlayer().getUniqueId(), e.getTo());
+            plugin.getTransitions().teleport(e.getPlayer(), from, to);
+        }
     }
 
 }
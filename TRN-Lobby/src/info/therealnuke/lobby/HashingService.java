@@ -0,0 +1,211 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import info.therealnuke.tools.PasswordBlacklist;
+import info.therealnuke.tools.PasswordManager;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bukkit.Bukkit;
+
+/**
+ * Hashes and checks passwords in a small pool of threads, so the main thread
+ * never waits for them. The pool queue is bounded: when it is full the request
+ * is rejected at once instead of piling up.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class HashingService {
+
+    private final Main plugin;
+    private final int iterations;
+    private final PasswordBlacklist blacklist;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Result of a hashing request, delivered on the main thread.
+     */
+    public static class Result {
+
+        private final boolean busy;
+        private final boolean matches;
+        private final boolean denied;
+        private final String newHash;
+
+        private Result(boolean busy, boolean matches, String newHash) {
+            this(busy, matches, false, newHash);
+        }
+
+        private Result(boolean busy, boolean matches, boolean denied,
+                String newHash) {
+            this.busy = busy;
+            this.matches = matches;
+            this.denied = denied;
+            this.newHash = newHash;
+        }
+
+        /**
+         * @return true if the request was rejected because the pool is full,
+         * or it failed.
+         */
+        public boolean isBusy() {
+            return busy;
+        }
+
+        /**
+         * @return true if the password matched the stored hash.
+         */
+        public boolean isMatch() {
+            return matches;
+        }
+
+        /**
+         * @return true if a new password was refused for being too common.
+         */
+        public boolean isDenied() {
+            return denied;
+        }
+
+        /**
+         * @return The new hash to be stored, or null if it has not changed.
+         */
+        public String getNewHash() {
+            return newHash;
+        }
+    }
+
+    public interface Callback {
+
+        void done(Result result);
+    }
+
+    public HashingService(Main plugin, int iterations, int threads, int queueSize,
+            PasswordBlacklist blacklist) {
+        this.plugin = plugin;
+        this.iterations = iterations;
+        this.blacklist = blacklist;
+        final AtomicInteger threadId = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "TRN-Lobby hashing "
+                                + threadId.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Hashes a new password, unless it is in the list of common passwords.
+     *
+     * @param password
+     * @param callback Receives the hash as the new hash of the result.
+     */
+    public void hash(final String password, final Callback callback) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (blacklist != null && blacklist.contains(password.toLowerCase())) {
+                        deliver(callback, new Result(false, false, true, null));
+                    } else {
+                        deliver(callback, new Result(false, true,
+                                PasswordManager.hashPassword(password, iterations)));
+                    }
+                } catch (RuntimeException ex) {
+                    fail(callback, ex);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Checks a password against a stored hash. Legacy hashes, or hashes made
+     * with a lower work factor, are rehashed when the password matches.
+     *
+     * @param salt Salt of the legacy scheme, the player UUID.
+     * @param password
+     * @param storedHash
+     * @param callback
+     */
+    public void verify(final String salt, final String password,
+            final String storedHash, final Callback callback) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean matches = PasswordManager.verifyPassword(salt,
+                            password, storedHash);
+                    String newHash = null;
+                    if (matches && PasswordManager.getIterations(storedHash) < iterations) {
+                        newHash = PasswordManager.hashPassword(password, iterations);
+                    }
+                    deliver(callback, new Result(false, matches, newHash));
+                } catch (RuntimeException ex) {
+                    fail(callback, ex);
+                }
+            }
+        }, callback);
+    }
+
+    private void submit(Runnable task, Callback callback) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            callback.done(new Result(true, false, null));
+        }
+    }
+
+    /**
+     * Delivers a failed request as a busy one, so the player is never left
+     * waiting for it.
+     */
+    private void fail(Callback callback, RuntimeException ex) {
+        Logger.getLogger(HashingService.class.getName()).log(Level.SEVERE, null, ex);
+        deliver(callback, new Result(true, false, null));
+    }
+
+    private void deliver(final Callback callback, final Result result) {
+        if (!plugin.isEnabled()) {
+            return;
+        }
+        Bukkit.getScheduler().runTask(plugin, new Runnable() {
+            @Override
+            public void run() {
+                callback.done(result);
+            }
+        });
+    }
+
+    /**
+     * Stops the pool, dropping the queued requests.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bukkit.World;
+
+/**
+ * A lobby world with its own spawn points. The spawn points of an instance
+ * are a range of the spawn points of the SpawnSelector.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class LobbyInstance {
+
+    private final World world;
+    private final int firstSpawn;
+    private final int lastSpawn;
+    private final AtomicInteger players;
+
+    /**
+     * @param world
+     * @param firstSpawn Index of the first spawn point in the SpawnSelector.
+     * @param lastSpawn Index after the last spawn point.
+     */
+    public LobbyInstance(World world, int firstSpawn, int lastSpawn) {
+        this.world = world;
+        this.firstSpawn = firstSpawn;
+        this.lastSpawn = lastSpawn;
+        this.players = new AtomicInteger();
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public int getFirstSpawn() {
+        return firstSpawn;
+    }
+
+    public int getLastSpawn() {
+        return lastSpawn;
+    }
+
+    /**
+     * Gets the players in this lobby, kept by the LobbyRegistry.
+     *
+     * @return
+     */
+    public int getPlayers() {
+        return players.get();
+    }
+
+    void enter() {
+        players.incrementAndGet();
+    }
+
+    void leave() {
+        players.decrementAndGet();
+    }
+}
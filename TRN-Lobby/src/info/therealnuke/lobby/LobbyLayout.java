@@ -0,0 +1,91 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import org.bukkit.Location;
+import org.bukkit.World;
+
+/**
+ * The spawn points of map.yml grouped in lobby instances, one per world. It
+ * never changes: adding a spawn point builds a new one, which the
+ * ConfigurationManager swaps in.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+final class LobbyLayout {
+
+    final List<Location> spawnPoints;
+    final List<LobbyInstance> instances;
+    final IdentityHashMap<World, LobbyInstance> instanceByWorld;
+    final Set<World> lobbyWorlds;
+    final SpawnSelector spawnSelector;
+
+    /**
+     * Groups the spawn points by world, one lobby instance per world.
+     *
+     * @param spawnPoints
+     * @param spawnRadius The distance at which players count for a spawn
+     * point.
+     */
+    LobbyLayout(List<Location> spawnPoints, double spawnRadius) {
+        LinkedHashMap<World, List<Location>> byWorld = new LinkedHashMap<>();
+        for (Location spawn : spawnPoints) {
+            List<Location> spawns = byWorld.get(spawn.getWorld());
+            if (spawns == null) {
+                spawns = new ArrayList<>();
+                byWorld.put(spawn.getWorld(), spawns);
+            }
+            spawns.add(spawn);
+        }
+        List<Location> grouped = new ArrayList<>(spawnPoints.size());
+        List<LobbyInstance> built = new ArrayList<>(byWorld.size());
+        IdentityHashMap<World, LobbyInstance> byWorldInstance = new IdentityHashMap<>();
+        for (List<Location> spawns : byWorld.values()) {
+            LobbyInstance instance = new LobbyInstance(spawns.get(0).getWorld(),
+                    grouped.size(), grouped.size() + spawns.size());
+            grouped.addAll(spawns);
+            built.add(instance);
+            byWorldInstance.put(instance.getWorld(), instance);
+        }
+        this.spawnPoints = Collections.unmodifiableList(new ArrayList<>(spawnPoints));
+        this.spawnSelector = new SpawnSelector(grouped, spawnRadius);
+        this.instances = Collections.unmodifiableList(built);
+        this.instanceByWorld = byWorldInstance;
+        this.lobbyWorlds = Collections.unmodifiableSet(byWorldInstance.keySet());
+    }
+
+    /**
+     * Gets a layout with one more spawn point.
+     *
+     * @param spawn
+     * @param spawnRadius
+     * @return
+     */
+    LobbyLayout withSpawnPoint(Location spawn, double spawnRadius) {
+        List<Location> spawns = new ArrayList<>(spawnPoints);
+        spawns.add(spawn);
+        return new LobbyLayout(spawns, spawnRadius);
+    }
+}
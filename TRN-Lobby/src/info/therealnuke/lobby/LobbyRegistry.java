@@ -0,0 +1,112 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * Players in the lobby worlds. It is updated when players join, quit or
+ * change of world, so it never has to ask the worlds for their players. It
+ * also counts the players of each lobby instance.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class LobbyRegistry {
+
+    private final Main plugin;
+    private final ConcurrentHashMap<UUID, Player> players;
+    private final ConcurrentHashMap<UUID, LobbyInstance> instances;
+
+    public LobbyRegistry(Main plugin) {
+        this.plugin = plugin;
+        this.players = new ConcurrentHashMap<>();
+        this.instances = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Fills the registry with the players already in the lobby worlds, for
+     * reloads and when the lobby instances change. The spawn selector of a
+     * new layout starts empty, so it is told where those players stand.
+     */
+    public void rebuild() {
+        // The instances may be kept by the new layout, so the players they
+        // counted are taken out before counting them again.
+        for (LobbyInstance instance : instances.values()) {
+            instance.leave();
+        }
+        players.clear();
+        instances.clear();
+        SpawnSelector selector = plugin.getCfg().getSpawnSelector();
+        for (LobbyInstance instance : plugin.getCfg().getInstances()) {
+            for (Player player : instance.getWorld().getPlayers()) {
+                update(player, instance.getWorld());
+                selector.update(player.getUniqueId(), player.getLocation());
+            }
+        }
+    }
+
+    /**
+     * Adds or removes a player as it enters or leaves a world.
+     *
+     * @param player
+     * @param world The world where the player is now, or null if it quits.
+     */
+    public void update(Player player, World world) {
+        LobbyInstance instance = world == null ? null
+                : plugin.getCfg().getInstance(world);
+        LobbyInstance previous;
+        if (instance != null) {
+            players.put(player.getUniqueId(), player);
+            previous = instances.put(player.getUniqueId(), instance);
+        } else {
+            players.remove(player.getUniqueId());
+            previous = instances.remove(player.getUniqueId());
+        }
+        if (previous != instance) {
+            if (previous != null) {
+                previous.leave();
+            }
+            if (instance != null) {
+                instance.enter();
+            }
+        }
+    }
+
+    public boolean contains(Player player) {
+        return players.containsKey(player.getUniqueId());
+    }
+
+    /**
+     * Gets a copy of the players in the lobby, to be changed while iterating.
+     *
+     * @return
+     */
+    public List<Player> copyPlayers() {
+        return new ArrayList<>(players.values());
+    }
+
+    public int size() {
+        return players.size();
+    }
+}
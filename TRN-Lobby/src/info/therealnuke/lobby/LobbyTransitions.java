@@ -0,0 +1,157 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.util.HashMap;
+import java.util.UUID;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * Follows players going in and out of the lobby world. A teleport towards
+ * or from the lobby only marks the player as entering or leaving; the move
+ * is done when the player is in the new world, and only then the player
+ * gets back its stuff. Teleports between other worlds are ignored.
+ * <p>
+ * Everything here runs on the main thread.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class LobbyTransitions {
+
+    public enum State {
+
+        OUTSIDE, ENTERING, IN_LOBBY, LEAVING
+    }
+
+    private final Main plugin;
+    private final HashMap<UUID, Transition> players;
+
+    private static class Transition {
+
+        private State state;
+        // The player is leaving to the world it came from.
+        private boolean toSourceWorld;
+
+        private Transition(State state) {
+            this.state = state;
+        }
+    }
+
+    public LobbyTransitions(Main plugin) {
+        this.plugin = plugin;
+        this.players = new HashMap<>();
+    }
+
+    /**
+     * Sets the state of the players already online, for reloads and when
+     * the lobby world changes.
+     */
+    public void rebuild() {
+        players.clear();
+        for (Player player : plugin.getServer().getOnlinePlayers()) {
+            join(player);
+        }
+    }
+
+    public void join(Player player) {
+        players.put(player.getUniqueId(), new Transition(
+                plugin.getCfg().isLobbyWorld(player.getWorld())
+                ? State.IN_LOBBY : State.OUTSIDE));
+    }
+
+    public void quit(Player player) {
+        players.remove(player.getUniqueId());
+    }
+
+    /**
+     * Marks a player teleported to another world as entering or leaving the
+     * lobby. Going from a lobby instance to another counts as entering.
+     *
+     * @param player
+     * @param from World the player is in.
+     * @param to World the player goes to.
+     */
+    public void teleport(Player player, World from, World to) {
+        boolean toLobby = plugin.getCfg().isLobbyWorld(to);
+        if (from == to || (!toLobby && !plugin.getCfg().isLobbyWorld(from))) {
+            return;
+        }
+        Transition transition = get(player);
+        if (toLobby) {
+            transition.state = State.ENTERING;
+        } else {
+            transition.state = State.LEAVING;
+            transition.toSourceWorld = to == plugin.getPm().getSourceWorld(player);
+        }
+    }
+
+    /**
+     * Completes the move of a player who is already in its new world. A
+     * player who leaves the lobby gets back its stuff in the next tick, out
+     * of the world change event, and is taken to where it was if it goes
+     * back to the world it came from.
+     *
+     * @param player
+     * @param from World the player was in.
+     */
+    public void changedWorld(final Player player, World from) {
+        Transition transition = get(player);
+        if (plugin.getCfg().isLobbyWorld(player.getWorld())) {
+            transition.state = State.IN_LOBBY;
+        } else if (plugin.getCfg().isLobbyWorld(from)) {
+            final boolean teleport = transition.state == State.LEAVING
+                    && transition.toSourceWorld;
+            transition.state = State.OUTSIDE;
+            // The stuff is given back once: returnPlayerStuff only restores
+            // a pending snapshot.
+            Bukkit.getScheduler().runTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    if (player.isOnline() && getState(player) == State.OUTSIDE) {
+                        plugin.getPm().returnPlayerStuff(player, teleport);
+                    }
+                }
+            });
+        } else {
+            transition.state = State.OUTSIDE;
+        }
+    }
+
+    private Transition get(Player player) {
+        Transition transition = players.get(player.getUniqueId());
+        if (transition == null) {
+            transition = new Transition(State.OUTSIDE);
+            players.put(player.getUniqueId(), transition);
+        }
+        return transition;
+    }
+
+    /**
+     * Gets the state of a player.
+     *
+     * @param player
+     * @return
+     */
+    public State getState(Player player) {
+        Transition transition = players.get(player.getUniqueId());
+        return transition == null ? State.OUTSIDE : transition.state;
+    }
+}
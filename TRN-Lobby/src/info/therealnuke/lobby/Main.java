@@ -40,47 +40,114 @@ public class Main extends JavaPlugin {
     private final TextManager text;
     private final PlayerManager pm;
     private final SignManager sm;
+    private final ChunkKeeper chunkKeeper;
+    private final LobbyRegistry registry;
+    private final StaticLobby staticLobby;
+    private final PermissionCache permissionCache;
+    private final LobbyTransitions transitions;
+    // Whether config.yml was loaded, so there is something to stop.
+    private boolean loaded;
 
     public Main() {
         cfg = new ConfigurationManager(this);
         cmd = new CommandManager(this);
         pm = new PlayerManager(this);
+        permissionCache = new PermissionCache(this);
         el = new EventListener(this);
         text = new TextManager(this);
         sm = new SignManager(this);
+        chunkKeeper = new ChunkKeeper(this);
+        registry = new LobbyRegistry(this);
+        transitions = new LobbyTransitions(this);
+        staticLobby = new StaticLobby(this);
     }
 
     /**
-     * Loads plugin config and initializes the listeners and schedulers.
+     * Loads plugin config and initializes the listeners and schedulers. A
+     * failure of one part does not keep the others from starting; without
+     * config.yml the plugin is disabled.
      */
     @Override
     public void onEnable() {
         try {
             cfg.load();
+        } catch (IOException | InvalidConfigurationException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+            getServer().getPluginManager().disablePlugin(this);
+            return;
+        }
+        loaded = true;
+        try {
             text.init();
-            cmd.init();
-            el.init();
-            sm.load();
         } catch (IOException | InvalidConfigurationException ex) {
             Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
         }
+        try {
+            pm.init();
+        } catch (IOException ex) {
+            // The listeners are still registered, so joins are refused
+            // instead of going in without login.
+            alert("Unable to open the credential storage, joins are refused: "
+                    + ex.getMessage());
+        }
+        cmd.init();
+        el.init();
+        registry.rebuild();
+        transitions.rebuild();
+        chunkKeeper.init();
+        staticLobby.apply();
+        sm.load();
     }
 
     /**
-     * Saves plugin configuration and stops the schedulers.
+     * Saves plugin configuration and stops the schedulers. Each part is
+     * stopped even if another one fails.
      */
     @Override
     public void onDisable() {
+        if (!loaded) {
+            return;
+        }
+        if (getCfg().isEnhanceSecurityEnabled()) {
+            pm.kickAllPlayersFromLobby();
+        }
         try {
-            if (getCfg().isEnhanceSecurityEnabled()) {
-                pm.kickAllPlayersFromLobby();
-            }
             cfg.finish();
-            el.finish();
-            sm.sincronousSave();
         } catch (IOException ex) {
             alert("Unable to save configuration: " + ex.getMessage());
         }
+        try {
+            pm.finish();
+        } catch (IOException ex) {
+            alert("Unable to close the credential storage: " + ex.getMessage());
+        }
+        el.finish();
+        chunkKeeper.finish();
+        staticLobby.finish();
+        sm.sincronousSave();
+    }
+
+    /**
+     * Updates everything that depends on config.yml, once it is reloaded.
+     * Must be called on the main thread.
+     *
+     * @throws IOException
+     */
+    public void applyConfig() throws IOException {
+        pm.init();
+        applyLayout();
+    }
+
+    /**
+     * Updates everything that depends on the spawn points, once they change.
+     * Must be called on the main thread.
+     */
+    public void applyLayout() {
+        el.reload();
+        chunkKeeper.keepSpawnPoints();
+        staticLobby.apply();
+        registry.rebuild();
+        transitions.rebuild();
     }
 
     /**
@@ -92,6 +159,51 @@ public class Main extends JavaPlugin {
         return cfg;
     }
 
+    /**
+     * Gets the world settings of the static lobby mode.
+     *
+     * @return
+     */
+    public StaticLobby getStaticLobby() {
+        return staticLobby;
+    }
+
+    /**
+     * Gets the cached permission decisions of the players.
+     *
+     * @return
+     */
+    public PermissionCache getPermissionCache() {
+        return permissionCache;
+    }
+
+    /**
+     * Gets the states of the players going in and out of the lobby.
+     *
+     * @return
+     */
+    public LobbyTransitions getTransitions() {
+        return transitions;
+    }
+
+    /**
+     * Gets the command manager.
+     *
+     * @return
+     */
+    public CommandManager getCmd() {
+        return cmd;
+    }
+
+    /**
+     * Gets the event listener.
+     *
+     * @return
+     */
+    public EventListener getEventListener() {
+        return el;
+    }
+
     /**
      * Logs a message in the console.
      *
@@ -144,5 +256,13 @@ public class Main extends JavaPlugin {
         return sm;
     }
 
+    public ChunkKeeper getChunkKeeper() {
+        return chunkKeeper;
+    }
+
+    public LobbyRegistry getRegistry() {
+        return registry;
+    }
+
     
 }
@@ -0,0 +1,85 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+/**
+ * The messages of text.yml. TextManager keeps them compiled by ordinal, so
+ * sending one never looks up its path.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public enum Message {
+
+    STORAGE_ERROR("storage-error", "&cUnable to load your account, please try again later."),
+    JOIN_THROTTLED("join-throttled", "&cToo many connections, please wait a minute."),
+    LOBBY_FULL("lobby-full", "&cThe lobby is full, please try again later."),
+    UNREG_WELCOME("unregistered-players.welcome"),
+    UNREG_NOT_ALLOWED("unregistered-players.notallowed"),
+    REG_WELCOME("registered-players.welcome"),
+    AUTOLOGIN("registered-players.autologin"),
+    LOGIN_SUCCESSFUL("registered-players.login.successful"),
+    LOGIN_UNSUCCESSFUL("registered-players.login.unsuccessful"),
+    REG_NOT_ALLOWED("registered-players.notallowed"),
+    BUSY("commands.busy", "&cThe server is busy, please try again in a few seconds."),
+    LOGIN_THROTTLED("commands.login.throttled", "&cToo many login attempts, please wait a minute."),
+    LOGIN_MISSING_PASSWORD("commands.login.missing-password"),
+    LOGIN_NOT_REGISTERED("commands.login.not-registered"),
+    LOGIN_ALREADY_LOGGED("commands.login.already-logged"),
+    LOGIN_SUCCESS("commands.login.success"),
+    REGISTER_MISSING_PASSWORD("commands.register.missing-password"),
+    REGISTER_FEW_CHARS("commands.register.few-password-chars"),
+    REGISTER_DISALLOWED_PASSWORD("commands.register.disallowed-password"),
+    REGISTER_ALREADY_REGISTERED("commands.register.already-registered"),
+    REGISTER_SUCCESS("commands.register.success"),
+    CHANGEPASSWORD_MISSING_PASSWORD("commands.changepassword.missing-password"),
+    CHANGEPASSWORD_NOT_REGISTERED("commands.changepassword.not-registered"),
+    CHANGEPASSWORD_NOT_LOGGED("commands.changepassword.not-logged"),
+    CHANGEPASSWORD_SUCCESS("commands.changepassword.success"),
+    LOGOUT_KICK("commands.logout.kick-message");
+
+    private final String path;
+    private final String def;
+
+    private Message(String path) {
+        this(path, null);
+    }
+
+    private Message(String path, String def) {
+        this.path = path;
+        this.def = def;
+    }
+
+    /**
+     * Gets the path of the message in text.yml.
+     *
+     * @return
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the text used if the message is not in text.yml.
+     *
+     * @return The text or null if there is none.
+     */
+    public String getDefault() {
+        return def;
+    }
+}
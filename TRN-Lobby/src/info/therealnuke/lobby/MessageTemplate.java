@@ -0,0 +1,96 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.md_5.bungee.api.ChatColor;
+
+/**
+ * A message of text.yml compiled once: the colors of each line are already
+ * translated and each line is split at its %PLAYER% placeholders, so
+ * rendering it only appends strings.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+final class MessageTemplate {
+
+    private static final String PLAYER = "%PLAYER%";
+
+    // The text of each line between its placeholders.
+    private final String[][] lines;
+    private final String text;
+
+    /**
+     * @param lines The lines of the message, as written in text.yml.
+     */
+    MessageTemplate(List<String> lines) {
+        this.lines = new String[lines.size()][];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = ChatColor.translateAlternateColorCodes('&', lines.get(i));
+            List<String> segments = new ArrayList<>();
+            int start = 0;
+            int slot;
+            while ((slot = line.indexOf(PLAYER, start)) >= 0) {
+                segments.add(line.substring(start, slot));
+                start = slot + PLAYER.length();
+            }
+            segments.add(line.substring(start));
+            this.lines[i] = segments.toArray(new String[segments.size()]);
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(line);
+        }
+        this.text = sb.toString();
+    }
+
+    /**
+     * Renders the lines of the message for a player.
+     *
+     * @param prefix Text put before each line.
+     * @param playerName The name put in the placeholders.
+     * @return
+     */
+    String[] render(String prefix, String playerName) {
+        String[] rendered = new String[lines.length];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            String[] segments = lines[i];
+            sb.setLength(0);
+            sb.append(prefix).append(segments[0]);
+            for (int j = 1; j < segments.length; j++) {
+                sb.append(playerName).append(segments[j]);
+            }
+            rendered[i] = sb.toString();
+        }
+        return rendered;
+    }
+
+    /**
+     * Gets the message without prefix or placeholders replaced, for kick
+     * messages.
+     *
+     * @return
+     */
+    String getText() {
+        return text;
+    }
+}
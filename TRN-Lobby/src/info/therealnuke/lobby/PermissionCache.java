@@ -0,0 +1,102 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.util.HashMap;
+import java.util.UUID;
+import org.bukkit.entity.HumanEntity;
+
+/**
+ * Remembers the plugin permissions of each player, so the lobby protection
+ * does not ask the permission resolver on every click. Each player has a
+ * bit per permission for the ones already checked and a bit per permission
+ * for the ones granted.
+ * <p>
+ * Bukkit has no event when permissions change, so the decisions are
+ * forgotten when the player changes of world, on reload, and after a few
+ * seconds. Only used from the main thread.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class PermissionCache {
+
+    public static final int EDIT = 0;
+    public static final int ADMIN = 1;
+    private static final String[] NODES = {"trnlobby.edit", "trnlobby.admin"};
+
+    private final Main plugin;
+    private final HashMap<UUID, Decisions> players;
+
+    private static class Decisions {
+
+        private int checked;
+        private int granted;
+        private long expires;
+    }
+
+    public PermissionCache(Main plugin) {
+        this.plugin = plugin;
+        this.players = new HashMap<>();
+    }
+
+    /**
+     * Checks a plugin permission of a player.
+     *
+     * @param player
+     * @param permission EDIT or ADMIN.
+     * @return True if the player has the permission.
+     */
+    public boolean has(HumanEntity player, int permission) {
+        long now = System.currentTimeMillis();
+        Decisions decisions = players.get(player.getUniqueId());
+        if (decisions == null) {
+            decisions = new Decisions();
+            players.put(player.getUniqueId(), decisions);
+        }
+        if (decisions.expires < now) {
+            decisions.checked = 0;
+            decisions.granted = 0;
+            decisions.expires = now + plugin.getCfg().getPermissionCacheTtl();
+        }
+        int bit = 1 << permission;
+        if ((decisions.checked & bit) == 0) {
+            if (player.hasPermission(NODES[permission])) {
+                decisions.granted |= bit;
+            }
+            decisions.checked |= bit;
+        }
+        return (decisions.granted & bit) != 0;
+    }
+
+    /**
+     * Forgets the decisions of a player.
+     *
+     * @param player
+     */
+    public void invalidate(HumanEntity player) {
+        players.remove(player.getUniqueId());
+    }
+
+    /**
+     * Forgets the decisions of all players.
+     */
+    public void clear() {
+        players.clear();
+    }
+}
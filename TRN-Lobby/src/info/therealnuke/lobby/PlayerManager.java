@@ -18,14 +18,25 @@
  */
 package info.therealnuke.lobby;
 
-import info.therealnuke.tools.PasswordManager;
+import info.therealnuke.tools.CredentialLog;
+import info.therealnuke.tools.CredentialStore;
+import info.therealnuke.tools.JdbcCredentialStore;
+import info.therealnuke.tools.LoginThrottle;
+import info.therealnuke.tools.PasswordBlacklist;
+import info.therealnuke.tools.SerialExecutor;
+import info.therealnuke.tools.SessionTokens;
+import info.therealnuke.tools.YamlCredentialStore;
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.bukkit.Bukkit;
@@ -35,7 +46,6 @@ import org.bukkit.World;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
-import org.bukkit.inventory.ItemStack;
 import org.bukkit.permissions.PermissionAttachment;
 import org.bukkit.scheduler.BukkitTask;
 
@@ -46,86 +56,153 @@ import org.bukkit.scheduler.BukkitTask;
 public class PlayerManager {
 
     private final Main plugin;
-    private final TreeMap<UUID, PlayerStuff> players;
-    private final TreeSet<UUID> playerToProcess;
-    private final ReentrantLock playerProcessLock;
+    private final ConcurrentHashMap<UUID, PlayerStuff> players;
+    private final ArrayDeque<Onboarding> playerToProcess;
     private BukkitTask playerProcessTask;
+    private CredentialStore credentials;
+    private HashingService hashing;
+    private PasswordBlacklist blacklist;
+    private SessionTokens sessions;
+    private SerialExecutor<UUID> storageQueue;
+    private BukkitTask evictionControl;
+    private ProfileStore profiles;
+    private long cacheHits;
+    private long cacheMisses;
+    private BukkitTask maintenanceControl;
+    private LoginThrottle loginByAddress;
+    private LoginThrottle loginByAccount;
+    private LoginThrottle joinByAddress;
+    private final ConcurrentHashMap<UUID, LoginPrefetch> prefetched;
 
     private enum Status {
 
         REGISTERED, LOGGED_IN, UNREGISTERED
     }
 
+    /**
+     * Status of a player as seen from any thread. A new record is published
+     * each time it changes, so async chat can read it without locks.
+     */
+    private static final class AuthState {
+
+        private final Status status;
+
+        private AuthState(Status status) {
+            this.status = status;
+        }
+    }
+
+    // Published status of the players, read by any thread.
+    private final ConcurrentHashMap<UUID, AuthState> authStates;
+
+    /**
+     * Steps to send a player who joins to the lobby.
+     */
+    private enum Stage {
+
+        RESOLVE, SNAPSHOT, TELEPORT, RESET, WELCOME, DONE
+    }
+
+    /**
+     * A player waiting in the join queue.
+     */
+    private class Onboarding {
+
+        private final Player player;
+        private PlayerStuff ps;
+        private Stage stage;
+        private Status welcome;
+
+        private Onboarding(Player player) {
+            this.player = player;
+            this.stage = Stage.RESOLVE;
+        }
+    }
+
+    /**
+     * Credentials read on the async login thread, before the player joins.
+     * Players with a valid session are not read at all.
+     */
+    private static class LoginPrefetch {
+
+        private final String hashedPassword;
+        private final boolean session;
+
+        private LoginPrefetch(String hashedPassword, boolean session) {
+            this.hashedPassword = hashedPassword;
+            this.session = session;
+        }
+    }
+
+    /**
+     * State of a player. It is only changed on the main thread; the storage
+     * work it causes runs in the player's own queue, see storageQueue.
+     */
     private class PlayerStuff {
 
-        private Location location;
-        private int foodLevel;
-        private ItemStack[] items;
-        private GameMode gameMode;
-        private float experience;
-        private int totalExperience;
-        private double health;
-        private boolean allowToFly;
-        private boolean isFlying;
+        private PlayerProfile profile;
         private Status status;
         private final UUID playerUid;
         private String hashedPassword;
-        private String typedPassword;
+        private boolean hashing;
         private Player player;
         private InetAddress lastIP;
-        private boolean isOp;
         private boolean canEditLobby;
+        // The snapshot has not been given back to the player yet.
+        private boolean pending;
+        private long quitTime;
 
         private PlayerStuff(Player player) {
-            location = player.getLocation();
-            foodLevel = player.getFoodLevel();
-            items = player.getInventory().getContents();
-            gameMode = player.getGameMode();
-            experience = player.getExp();
-            totalExperience = player.getTotalExperience();
-            health = player.getHealth();
-            isFlying = player.isFlying();
-            allowToFly = player.getAllowFlight();
-            setStatus(Status.UNREGISTERED);
+            this(player, null);
+        }
+
+        /**
+         * @param player
+         * @param profile A profile kept from before, still to be given back,
+         * or null if there is none. A snapshot is only taken when the player
+         * is sent to the lobby.
+         */
+        private PlayerStuff(Player player, PlayerProfile profile) {
             playerUid = player.getUniqueId();
+            setStatus(Status.UNREGISTERED);
             this.player = player;
             lastIP = player.getAddress().getAddress();
-            isOp = player.isOp();
+            if (profile != null) {
+                this.profile = profile;
+                pending = true;
+            }
         }
 
+        /**
+         * Takes the profile of the player and keeps it on disk until it is
+         * given back. Only called when the player is sent to the lobby.
+         */
+        private void snapshot() {
+            profile = PlayerProfile.of(player);
+            pending = true;
+            profiles.save(playerUid, profile);
+        }
+
+        /**
+         * Takes a new snapshot of the player, unless the last one is still
+         * pending.
+         */
         private void update() {
-            location = player.getLocation();
-            foodLevel = player.getFoodLevel();
-            items = player.getInventory().getContents();
-            gameMode = player.getGameMode();
-            experience = player.getExp();
-            totalExperience = player.getTotalExperience();
-            health = player.getHealth();
-            allowToFly = player.getAllowFlight();
-            isFlying = player.isFlying();
             lastIP = player.getAddress().getAddress();
-            isOp = player.isOp();
+            if (!pending) {
+                snapshot();
+            }
         }
 
         public void setPlayerStuff(Player player, boolean teleport) {
-            if (teleport) {
-                player.teleport(location);
-            }
-            player.setFoodLevel(foodLevel);
-            if (plugin.getCfg().isHandleInventory()) {
-                player.getInventory().setContents(items);
-            }
-            player.setGameMode(gameMode);
-            player.setExp(experience);
-            player.setTotalExperience(totalExperience);
-            player.setHealth(health);
-            player.setAllowFlight(allowToFly);
-            player.setFlying(isFlying);
-            player.setOp(isOp);
+            profile.apply(player, teleport, plugin.getCfg().isHandleInventory());
+            pending = false;
+            profiles.delete(playerUid);
         }
 
         private void setStatus(Status status) {
             this.status = status;
+            authStates.put(playerUid, new AuthState(status));
             if (player != null) {
                 PermissionAttachment at = player.addAttachment(plugin);
                 switch (status) {
@@ -148,45 +225,452 @@ public class PlayerManager {
             }
         }
 
-        private Status getStatus() {
-            return status;
-        }
-
         private String getHashedPassword() {
             return hashedPassword;
         }
 
-        private void storeHashedPassword(String password) {
-            this.hashedPassword = PasswordManager.
-                    getHashedPassword(playerUid.toString(), password);
+        public InetAddress getLastIP() {
+            return lastIP;
+        }
+
+    }
+
+    public PlayerManager(Main plugin) {
+        this.plugin = plugin;
+        this.players = new ConcurrentHashMap<>();
+        this.playerToProcess = new ArrayDeque<>();
+        this.prefetched = new ConcurrentHashMap<>();
+        this.authStates = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Opens the configured credential storage, importing the old per player
+     * files the first time a storage other than YAML is created. If it
+     * cannot be opened no storage is kept, joins are refused, and the next
+     * call tries again.
+     *
+     * @throws IOException
+     */
+    public void init() throws IOException {
+        if (storageQueue == null) {
+            storageQueue = new SerialExecutor<>("TRN-Lobby storage",
+                    Math.max(2, Runtime.getRuntime().availableProcessors()));
+            profiles = new ProfileStore(plugin, new File(plugin.getDataFolder(), "profiles"),
+                    storageQueue, plugin.getCfg().getPlayerCacheSize());
+        }
+        startEvictionControl();
+        startPlayerProcessTask();
+        if (plugin.getCfg().isEnhanceSecurityEnabled() && credentials == null) {
+            File passwordDir = plugin.getCfg().getPasswordDirFile();
+            String storage = plugin.getCfg().getStorageType();
+            switch (storage) {
+                case "yaml":
+                    credentials = new YamlCredentialStore(passwordDir);
+                    break;
+                case "sql":
+                    credentials = new JdbcCredentialStore(plugin.getCfg().getSqlUrl(),
+                            plugin.getCfg().getSqlUser(), plugin.getCfg().getSqlPassword(),
+                            plugin.getCfg().getSqlPoolSize(), plugin.getCfg().getSqlBatchSize());
+                    break;
+                default:
+                    credentials = new CredentialLog(new File(passwordDir, "credentials.log"),
+                            new File(passwordDir, "credentials.idx"));
+                    break;
+            }
+            try {
+                // Marks the import as pending until it is done, so an import
+                // stopped by a crash is run again on the next start.
+                File importPending = new File(passwordDir, "legacy-import.pending");
+                if (credentials.open() && !(credentials instanceof YamlCredentialStore)) {
+                    importPending.createNewFile();
+                }
+                if (importPending.exists()) {
+                    importLegacyFiles(passwordDir);
+                    if (!importPending.delete()) {
+                        plugin.alert("Unable to delete " + importPending);
+                    }
+                }
+                loadSessions(passwordDir);
+            } catch (IOException ex) {
+                credentials = null;
+                throw ex;
+            }
+            startMaintenanceControl();
+            loadBlacklist();
+            hashing = new HashingService(plugin, plugin.getCfg().getHashIterations(),
+                    plugin.getCfg().getHashThreads(), plugin.getCfg().getHashQueueSize(),
+                    blacklist);
+        }
+        initThrottles();
+    }
+
+    /**
+     * Creates the login throttles, or drops them if throttling is disabled.
+     */
+    private void initThrottles() {
+        ConfigurationManager cfg = plugin.getCfg();
+        if (cfg.isEnhanceSecurityEnabled() && cfg.isThrottleEnabled()) {
+            loginByAddress = new LoginThrottle(cfg.getThrottleStripes(),
+                    cfg.getLoginIpBurst(), cfg.getLoginIpRate());
+            loginByAccount = new LoginThrottle(cfg.getThrottleStripes(),
+                    cfg.getLoginAccountBurst(), cfg.getLoginAccountRate());
+            joinByAddress = cfg.isJoinThrottleEnabled()
+                    ? new LoginThrottle(cfg.getThrottleStripes(),
+                            cfg.getJoinIpBurst(), cfg.getJoinIpRate())
+                    : null;
+        } else {
+            loginByAddress = null;
+            loginByAccount = null;
+            joinByAddress = null;
         }
+    }
 
-        private void setTypedPassword(String typedPassword) {
-            this.typedPassword = typedPassword;
+    private static long addressKey(InetAddress address) {
+        long key = 0;
+        for (byte b : address.getAddress()) {
+            key = key * 31 + (b & 0xFF);
         }
+        return key;
+    }
+
+    private static long accountKey(UUID uuid) {
+        return uuid.getMostSignificantBits() * 31 + uuid.getLeastSignificantBits();
+    }
+
+    /**
+     * Checks if a new connection from an IP address is allowed. Called from
+     * the async pre login thread.
+     *
+     * @param address
+     * @return false if the address has connected too many times.
+     */
+    public boolean tryJoin(InetAddress address) {
+        LoginThrottle throttle = joinByAddress;
+        return throttle == null || throttle.tryAcquire(addressKey(address));
+    }
 
-        private boolean validateTypedPassword() {
-            boolean ret = false;
-            if (typedPassword != null && hashedPassword != null) {
-                ret = PasswordManager.getHashedPassword(
-                        playerUid.toString(), typedPassword)
-                        .equals(hashedPassword);
+    /**
+     * Gets a summary of the login throttles for admins.
+     *
+     * @return One line per throttle, empty if throttling is disabled.
+     */
+    public List<String> getThrottleStats() {
+        List<String> stats = new ArrayList<>();
+        addThrottleStats(stats, "Login per IP", loginByAddress);
+        addThrottleStats(stats, "Login per account", loginByAccount);
+        addThrottleStats(stats, "Join per IP", joinByAddress);
+        return stats;
+    }
 
+    private static void addThrottleStats(List<String> stats, String name,
+            LoginThrottle throttle) {
+        if (throttle != null) {
+            stats.add(name + ": " + throttle.getAllowed() + " allowed, "
+                    + throttle.getRejected() + " refused, "
+                    + throttle.getActive() + "/" + throttle.getSize() + " active.");
+        }
+    }
+
+    /**
+     * Compiles and maps the list of denied passwords in an async task. Until
+     * it is ready only the words of config.yml are denied.
+     */
+    private void loadBlacklist() {
+        final File deniedFile = plugin.getCfg().getDeniedPasswordFile();
+        blacklist = new PasswordBlacklist(deniedFile,
+                new File(deniedFile.getPath() + ".bloom"));
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long entries = blacklist.load();
+                    if (entries >= 0) {
+                        plugin.logMsg("Loaded " + entries + " denied passwords from "
+                                + deniedFile.getName() + ".");
+                    }
+                } catch (IOException ex) {
+                    plugin.alert("Unable to load " + deniedFile.getName()
+                            + ": " + ex.getMessage());
+                }
             }
-            return ret;
+        });
+    }
+
+    /**
+     * Loads the sessions of the players logged in before the last restart. A
+     * broken session file is not fatal, those players just log in again.
+     */
+    private void loadSessions(File passwordDir) {
+        sessions = new SessionTokens(new File(passwordDir, "session.key"),
+                new File(passwordDir, "sessions.dat"));
+        try {
+            plugin.logMsg("Loaded " + sessions.load() + " player sessions.");
+        } catch (IOException ex) {
+            plugin.alert("Unable to load player sessions: " + ex.getMessage());
         }
+    }
 
-        public InetAddress getLastIP() {
-            return lastIP;
+    private void importLegacyFiles(File passwordDir) throws IOException {
+        File[] userFiles = passwordDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".yml");
+            }
+        });
+        if (userFiles != null && userFiles.length > 0) {
+            int imported = 0;
+            for (File userFile : userFiles) {
+                String name = userFile.getName();
+                UUID uuid;
+                try {
+                    uuid = UUID.fromString(name.substring(0, name.length() - 4));
+                } catch (IllegalArgumentException ex) {
+                    continue;
+                }
+                YamlConfiguration passYml = new YamlConfiguration();
+                try {
+                    passYml.load(userFile);
+                } catch (IOException | InvalidConfigurationException ex) {
+                    plugin.alert("Unable to import " + name + ": " + ex.getMessage());
+                    continue;
+                }
+                String password = passYml.getString("password");
+                if (password != null) {
+                    credentials.setHash(uuid, password);
+                    imported++;
+                }
+            }
+            plugin.logMsg("Imported " + imported + " player files into the credential storage.");
+        }
+    }
+
+    /**
+     * Runs the storage maintenance every 5 seconds, so batched SQL writes are
+     * not held for long. The credential log checks for compaction far less
+     * often.
+     */
+    private void startMaintenanceControl() {
+        if (maintenanceControl == null) {
+            maintenanceControl = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        credentials.maintain();
+                    } catch (IOException ex) {
+                        plugin.alert("Error maintaining credential storage: " + ex.getMessage());
+                    }
+                    try {
+                        sessions.save();
+                    } catch (IOException ex) {
+                        plugin.alert("Error saving player sessions: " + ex.getMessage());
+                    }
+                }
+            }, 100, 100);
         }
+    }
 
+    private void startEvictionControl() {
+        if (evictionControl == null) {
+            evictionControl = Bukkit.getScheduler().runTaskTimer(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    evictOfflinePlayers();
+                }
+            }, 400, 400);
+        }
     }
 
-    public PlayerManager(Main plugin) {
-        this.plugin = plugin;
-        this.players = new TreeMap<>();
-        this.playerProcessLock = new ReentrantLock();
-        this.playerToProcess = new TreeSet<>();
+    /**
+     * Drops players offline for too long, and the oldest offline players if
+     * there are too many. Snapshots still pending are kept on disk.
+     */
+    private void evictOfflinePlayers() {
+        long expired = System.currentTimeMillis() - plugin.getCfg().getPlayerCacheTtl();
+        List<PlayerStuff> offline = new ArrayList<>();
+        for (PlayerStuff ps : players.values()) {
+            if (ps.player == null) {
+                if (ps.quitTime < expired) {
+                    evict(ps);
+                } else {
+                    offline.add(ps);
+                }
+            }
+        }
+        int excess = players.size() - plugin.getCfg().getPlayerCacheSize();
+        if (excess > 0) {
+            Collections.sort(offline, new Comparator<PlayerStuff>() {
+                @Override
+                public int compare(PlayerStuff a, PlayerStuff b) {
+                    return Long.compare(a.quitTime, b.quitTime);
+                }
+            });
+            for (int i = 0; i < excess && i < offline.size(); i++) {
+                evict(offline.get(i));
+            }
+        }
+    }
+
+    private void evict(PlayerStuff ps) {
+        players.remove(ps.playerUid);
+        authStates.remove(ps.playerUid);
+    }
+
+    /**
+     * Gets a player from the cache, or from its profile kept on disk when it
+     * was evicted or the server stopped while it was in the lobby.
+     *
+     * @return The cached player or null if it must be created.
+     */
+    private PlayerStuff getCachedPlayer(Player player) {
+        UUID uuid = player.getUniqueId();
+        PlayerStuff ps = players.get(uuid);
+        if (ps != null) {
+            cacheHits++;
+            return ps;
+        }
+        cacheMisses++;
+        PlayerProfile profile = profiles.get(uuid);
+        if (profile != null) {
+            ps = new PlayerStuff(player, profile);
+        }
+        return ps;
+    }
+
+    /**
+     * Marks a player as offline, so it can be evicted later. The Player
+     * object is released at once. A logged in player is published as not
+     * logged in, so if it comes back it is gated until the join is resolved;
+     * resolve() logs it in again if its session is still valid.
+     *
+     * @param player
+     */
+    public void playerQuit(Player player) {
+        PlayerStuff ps = players.get(player.getUniqueId());
+        if (ps != null) {
+            ps.player = null;
+            ps.quitTime = System.currentTimeMillis();
+            if (ps.status == Status.LOGGED_IN) {
+                authStates.put(ps.playerUid, new AuthState(Status.REGISTERED));
+            }
+        }
+    }
+
+    /**
+     * Gets a summary of the player cache for admins.
+     *
+     * @return
+     */
+    public String getCacheStats() {
+        long lookups = cacheHits + cacheMisses;
+        return "Player cache: " + players.size() + "/" + plugin.getCfg().getPlayerCacheSize()
+                + " entries, " + profiles.size() + " profiles in memory, hit rate "
+                + (lookups == 0 ? 0 : cacheHits * 100 / lookups) + "%.";
+    }
+
+    /**
+     * Reads the credentials of a player who is logging in, so the join does
+     * not have to. Players coming back with a valid session are resolved from
+     * memory. Called from the async pre login thread.
+     *
+     * @param uuid
+     * @param address
+     * @return false if the credentials could not be read, or the storage
+     * could not be opened.
+     */
+    public boolean prefetchLogin(UUID uuid, InetAddress address) {
+        boolean ret = true;
+        if (plugin.getCfg().isEnhanceSecurityEnabled() && credentials == null) {
+            // Nobody joins without being gated.
+            return false;
+        }
+        try {
+            profiles.prefetch(uuid);
+        } catch (IOException ex) {
+            Logger.getLogger(PlayerManager.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+        if (plugin.getCfg().isEnhanceSecurityEnabled() && credentials != null) {
+            try {
+                if (plugin.getCfg().isAutologinEnabled()
+                        && sessions.isValid(uuid, address)) {
+                    prefetched.put(uuid, new LoginPrefetch(null, true));
+                } else {
+                    prefetched.put(uuid, new LoginPrefetch(credentials.getHash(uuid), false));
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(PlayerManager.class.getName()).log(Level.SEVERE, null, ex);
+                ret = false;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Finds the players whose last login was from an IP address. It reads
+     * from the storage, so it must not be called from the main thread.
+     *
+     * @param address
+     * @return
+     * @throws IOException
+     */
+    public List<UUID> findAccountsByAddress(String address) throws IOException {
+        if (credentials == null) {
+            throw new IOException("Enhanced security is not enabled.");
+        }
+        return credentials.findByAddress(address);
+    }
+
+    /**
+     * Drops the prefetched credentials of a player whose login was denied.
+     *
+     * @param uuid
+     */
+    public void discardPrefetch(UUID uuid) {
+        prefetched.remove(uuid);
+        profiles.discard(uuid);
+    }
+
+    /**
+     * Stops the maintenance monitor and closes the credential storage.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (hashing != null) {
+            hashing.shutdown();
+            hashing = null;
+        }
+        if (blacklist != null) {
+            blacklist.close();
+            blacklist = null;
+        }
+        if (maintenanceControl != null) {
+            maintenanceControl.cancel();
+            maintenanceControl = null;
+        }
+        if (evictionControl != null) {
+            evictionControl.cancel();
+            evictionControl = null;
+        }
+        if (playerProcessTask != null) {
+            playerProcessTask.cancel();
+            playerProcessTask = null;
+        }
+        if (storageQueue != null) {
+            if (!storageQueue.shutdown(5000)) {
+                plugin.alert("Some player data could not be saved in time.");
+            }
+            storageQueue = null;
+            profiles = null;
+        }
+        if (sessions != null) {
+            sessions.save();
+            sessions = null;
+        }
+        if (credentials != null) {
+            credentials.close();
+            credentials = null;
+        }
     }
 
     /**
@@ -195,7 +679,13 @@ public class PlayerManager {
      * @param player
      */
     public void savePlayerStuff(Player player) {
-        PlayerStuff stuff = new PlayerStuff(player);
+        PlayerStuff stuff = getCachedPlayer(player);
+        if (stuff == null || !stuff.pending) {
+            stuff = new PlayerStuff(player);
+            stuff.snapshot();
+        } else {
+            stuff.player = player;
+        }
         players.put(player.getUniqueId(), stuff);
     }
 
@@ -209,57 +699,60 @@ public class PlayerManager {
     }
 
     /**
-     * Returns original stuff to the players.
+     * Returns original stuff to the players, once per snapshot.
      *
      * @param player
      * @param teleport If it is true player is taken to it original location.
      */
     public void returnPlayerStuff(Player player, boolean teleport) {
         PlayerStuff stuff = players.get(player.getUniqueId());
-        if (stuff != null) {
+        if (stuff != null && stuff.pending) {
             stuff.setPlayerStuff(player, teleport);
 
         }
     }
 
     /**
-     * Clear player inventory, health, etc.
+     * Clear player inventory, health, etc. Must be called on the main thread.
      *
      * @param player
      */
     public void setPlayerSpawnStuff(final Player player) {
-        Bukkit.getScheduler().runTask(plugin, new Runnable() {
-            @Override
-            public void run() {
-                player.setFoodLevel(20);
-                if (plugin.getCfg().isHandleInventory()) {
-                    player.getInventory().clear();
-                }
-                player.setGameMode(GameMode.ADVENTURE);
-                player.setExp(0);
-                player.setTotalExperience(0);
-                player.setHealth(player.getMaxHealth());
-                player.setFlying(false);
-                player.setAllowFlight(false);
-                if (plugin.getCfg().isEnhanceSecurityEnabled()) {
-                    player.setOp(false);
-                }
-                PermissionAttachment at = player.addAttachment(plugin);
-            }
-        });
+        player.setFoodLevel(20);
+        if (plugin.getCfg().isHandleInventory()) {
+            player.getInventory().clear();
+        }
+        player.setGameMode(GameMode.ADVENTURE);
+        player.setExp(0);
+        player.setTotalExperience(0);
+        player.setHealth(player.getMaxHealth());
+        player.setFlying(false);
+        player.setAllowFlight(false);
+        if (plugin.getCfg().isEnhanceSecurityEnabled()) {
+            player.setOp(false);
+        }
+        PermissionAttachment at = player.addAttachment(plugin);
     }
 
-    public void teleportToLobby(final Player player) {
-        Bukkit.getScheduler().runTask(plugin, new Runnable() {
-            @Override
-            public void run() {
-                player.teleport(plugin.getCfg().getNextSpawnPoint());
-            }
-        });
+    /**
+     * Must be called on the main thread.
+     *
+     * @param player
+     * @return false if there is no spawn point or every lobby is full.
+     */
+    public boolean teleportToLobby(final Player player) {
+        Location spawn = plugin.getCfg().getNextSpawnPoint(player);
+        if (spawn == null) {
+            return false;
+        }
+        player.teleport(spawn);
+        return true;
     }
 
     /**
-     * Gets the world where the player comes from.
+     * Gets the world where the player comes from. Players without a snapshot
+     * yet, still queued or who walked into the lobby, come from the default
+     * world.
      *
      * @param player
      * @return
@@ -268,21 +761,23 @@ public class PlayerManager {
         World sourceWorld = null;
         PlayerStuff stuff = players.get(player.getUniqueId());
         if (stuff != null) {
-            sourceWorld = stuff.location.getWorld();
+            sourceWorld = stuff.profile == null ? Bukkit.getWorlds().get(0)
+                    : Bukkit.getWorld(stuff.profile.getWorldName());
         }
         return sourceWorld;
     }
 
+    /**
+     * Writes the hash of a player. Writes of the same player are queued in
+     * order, so an older password never overwrites a newer one.
+     */
     private void persistPlayer(final PlayerStuff ps) {
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+        final String hashedPassword = ps.getHashedPassword();
+        storageQueue.execute(ps.playerUid, new Runnable() {
             @Override
             public void run() {
-                File userFileName = new File(plugin.getCfg().getPasswordDirFile(),
-                        ps.playerUid.toString() + ".yml");
-                YamlConfiguration passYml = new YamlConfiguration();
-                passYml.set("password", ps.getHashedPassword());
                 try {
-                    passYml.save(userFileName);
+                    credentials.setHash(ps.playerUid, hashedPassword);
                 } catch (IOException ex) {
                     Logger.getLogger(PlayerManager.class.getName()).log(Level.SEVERE, null, ex);
                 }
@@ -290,110 +785,275 @@ public class PlayerManager {
         });
     }
 
-    private void getPlayerStatus(final PlayerStuff ps) {
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+    /**
+     * Records a login in the storage and starts or renews the session of the
+     * player.
+     */
+    private void recordLogin(final PlayerStuff ps) {
+        InetAddress inetAddress = ps.player.getAddress().getAddress();
+        final String address = inetAddress.getHostAddress();
+        final long time = System.currentTimeMillis();
+        sessions.issue(ps.playerUid, inetAddress,
+                time + plugin.getCfg().getSessionLifetime());
+        storageQueue.execute(ps.playerUid, new Runnable() {
             @Override
             public void run() {
-                File userFileName = new File(plugin.getCfg().getPasswordDirFile(),
-                        ps.playerUid.toString() + ".yml");
-                if (userFileName.exists()) {
-                    YamlConfiguration passYml = new YamlConfiguration();
-                    try {
-                        passYml.load(userFileName);
-                    } catch (IOException | InvalidConfigurationException ex) {
-                        Logger.getLogger(PlayerManager.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                    ps.hashedPassword = passYml.getString("password");
-                    ps.setStatus(Status.REGISTERED);
-                } else {
-                    ps.setStatus(Status.UNREGISTERED);
+                try {
+                    credentials.recordLogin(ps.playerUid, address, time);
+                } catch (IOException ex) {
+                    Logger.getLogger(PlayerManager.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
         });
     }
 
-    private void login(PlayerStuff ps) {
-        if (ps.validateTypedPassword()) {
+    private boolean getPlayerStatus(final PlayerStuff ps) {
+        LoginPrefetch prefetch = prefetched.remove(ps.playerUid);
+        if (prefetch != null && prefetch.session
+                && plugin.getCfg().isAutologinEnabled()) {
+            // The password is not needed while the player is logged in.
             ps.setStatus(Status.LOGGED_IN);
-            plugin.getText().sendLoginSuccessMessage(ps.player);
-            ps.player.setOp(ps.isOp);
+            return true;
+        }
+        if (prefetch != null && !prefetch.session) {
+            ps.hashedPassword = prefetch.hashedPassword;
+        } else {
+            try {
+                ps.hashedPassword = credentials.getHash(ps.playerUid);
+            } catch (IOException ex) {
+                plugin.alert("Unable to read credentials of " + ps.player.getName()
+                        + ": " + ex.getMessage());
+                return false;
+            }
+        }
+        if (ps.hashedPassword != null) {
+            ps.setStatus(Status.REGISTERED);
         } else {
-            plugin.getText().sendLoginUnsuccessMessage(ps.player);
+            ps.setStatus(Status.UNREGISTERED);
         }
+        return true;
     }
 
-    private void register(final PlayerStuff ps) {
-        ps.hashedPassword = PasswordManager.getHashedPassword(
-                ps.playerUid.toString(), ps.typedPassword);
-        persistPlayer(ps);
-        ps.setStatus(Status.LOGGED_IN);
+    private void login(final PlayerStuff ps, String password) {
+        ps.hashing = true;
+        hashing.verify(ps.playerUid.toString(), password, ps.hashedPassword,
+                new HashingService.Callback() {
+                    @Override
+                    public void done(HashingService.Result result) {
+                        ps.hashing = false;
+                        if (ps.player == null || !ps.player.isOnline()) {
+                            return;
+                        }
+                        if (result.isBusy()) {
+                            plugin.getText().sendBusyMsg(ps.player);
+                        } else if (result.isMatch()) {
+                            if (result.getNewHash() != null) {
+                                // Upgrades legacy or weaker hashes.
+                                ps.hashedPassword = result.getNewHash();
+                                persistPlayer(ps);
+                            }
+                            ps.setStatus(Status.LOGGED_IN);
+                            recordLogin(ps);
+                            plugin.getText().sendLoginSuccessMessage(ps.player);
+                            // Without a snapshot the op flag was never taken.
+                            if (ps.profile != null) {
+                                ps.player.setOp(ps.profile.isOp());
+                            }
+                        } else {
+                            plugin.getText().sendLoginUnsuccessMessage(ps.player);
+                        }
+                    }
+                });
     }
 
-    public void playerConnect(final Player player) {
-        if (plugin.getCfg().isEnhanceSecurityEnabled()) {
-            PlayerStuff ps;
-            ps = players.get(player.getUniqueId());
-            if (ps == null) {
-                ps = new PlayerStuff(player);
-                players.put(player.getUniqueId(), ps);
-                getPlayerStatus(ps);
-            } else {
-                ps.player = player;
+    private void register(final PlayerStuff ps, String password,
+            final boolean change) {
+        ps.hashing = true;
+        hashing.hash(password, new HashingService.Callback() {
+            @Override
+            public void done(HashingService.Result result) {
+                ps.hashing = false;
+                if (ps.player == null || !ps.player.isOnline()) {
+                    return;
+                }
+                if (result.isBusy()) {
+                    plugin.getText().sendBusyMsg(ps.player);
+                } else if (result.isDenied()) {
+                    plugin.getText().sendRegdisallowPwMsg(ps.player);
+                } else {
+                    ps.hashedPassword = result.getNewHash();
+                    persistPlayer(ps);
+                    ps.setStatus(Status.LOGGED_IN);
+                    recordLogin(ps);
+                    if (change) {
+                        plugin.getText().sendCPSuccessMsg(ps.player);
+                    } else {
+                        plugin.getText().sendRegSuccessMsg(ps.player);
+                    }
+                }
             }
+        });
+    }
 
-            final PlayerStuff psFinal = ps;
-            Bukkit.getScheduler().runTaskLaterAsynchronously(plugin, new Runnable() {
+    /**
+     * Queues a player who has just joined. The player is sent to the lobby
+     * and asked for login or registration by processPlayers().
+     *
+     * @param player
+     */
+    public void playerConnect(final Player player) {
+        playerToProcess.add(new Onboarding(player));
+    }
+
+    private void startPlayerProcessTask() {
+        if (playerProcessTask == null) {
+            playerProcessTask = Bukkit.getScheduler().runTaskTimer(plugin, new Runnable() {
                 @Override
                 public void run() {
+                    processPlayers();
+                }
+            }, 1, 1);
+        }
+    }
 
-                    if (plugin.getCfg().isAutologinEnabled()
-                            && psFinal.status == Status.LOGGED_IN) {
-                        if (psFinal.lastIP.equals(player.getAddress().getAddress())) {
-                            plugin.getText().sendAutologinMessage(player);
-                        } else {
-                            psFinal.setStatus(Status.REGISTERED);
-                            manageRegisteredPlayers(psFinal);
-                        }
-                    } else {
-                        if (psFinal.status == Status.UNREGISTERED) {
-                            manageUnregistered(psFinal);
-                        } else {
-                            manageRegisteredPlayers(psFinal);
-                        }
-                    }
+    /**
+     * Runs the stages of the queued players, in order, until the time budget
+     * of the tick is spent. At least one stage runs each tick.
+     */
+    private void processPlayers() {
+        long deadline = System.nanoTime() + plugin.getCfg().getOnboardingBudget();
+        Onboarding job;
+        do {
+            if ((job = playerToProcess.peek()) == null) {
+                break;
+            }
+            if (job.player.isOnline()) {
+                job.stage = runStage(job);
+            } else {
+                prefetched.remove(job.player.getUniqueId());
+                job.stage = Stage.DONE;
+            }
+            if (job.stage == Stage.DONE) {
+                playerToProcess.poll();
+            }
+        } while (System.nanoTime() < deadline);
+    }
+
+    /**
+     * Runs the current stage of a player.
+     *
+     * @return The next stage.
+     */
+    private Stage runStage(Onboarding job) {
+        Stage next = Stage.DONE;
+        switch (job.stage) {
+            case RESOLVE:
+                next = resolve(job);
+                break;
+            case SNAPSHOT:
+                if (!plugin.getCfg().hasRoomFor(job.player)) {
+                    job.player.kickPlayer(plugin.getText().getLobbyFullMsg());
+                    break;
                 }
-            }, 5);
+                if (job.ps != null) {
+                    job.ps.update();
+                } else {
+                    savePlayerStuff(job.player);
+                }
+                next = Stage.TELEPORT;
+                break;
+            case TELEPORT:
+                if (!teleportToLobby(job.player)) {
+                    // The lobby filled up since the snapshot was taken.
+                    returnPlayerStuff(job.player, false);
+                    job.player.kickPlayer(plugin.getText().getLobbyFullMsg());
+                    break;
+                }
+                next = Stage.RESET;
+                break;
+            case RESET:
+                setPlayerSpawnStuff(job.player);
+                next = Stage.WELCOME;
+                break;
+            case WELCOME:
+                if (job.welcome == Status.REGISTERED) {
+                    plugin.getText().sendRegPlayerWlcMessage(job.player);
+                } else if (job.welcome == Status.UNREGISTERED) {
+                    plugin.getText().sendUnregPlayerWlcMessage(job.player);
+                }
+                break;
+        }
+        return next;
+    }
 
+    /**
+     * Finds out if the player is registered or logged in. The credentials are
+     * already in memory, read by prefetchLogin().
+     */
+    private Stage resolve(Onboarding job) {
+        if (!plugin.getCfg().isEnhanceSecurityEnabled()) {
+            return Stage.SNAPSHOT;
+        }
+        Player player = job.player;
+        PlayerStuff ps;
+        ps = getCachedPlayer(player);
+        if (ps == null || players.get(player.getUniqueId()) != ps) {
+            if (ps == null) {
+                ps = new PlayerStuff(player);
+            }
+            if (!getPlayerStatus(ps)) {
+                player.kickPlayer(plugin.getText().getStorageErrorMsg());
+                return Stage.DONE;
+            }
+            players.put(player.getUniqueId(), ps);
         } else {
-            savePlayerStuff(player);
-            teleportToLobby(player);
-            setPlayerSpawnStuff(player);
+            ps.player = player;
+            LoginPrefetch prefetch = prefetched.remove(player.getUniqueId());
+            if (ps.hashedPassword == null && prefetch != null && !prefetch.session) {
+                // Logged in by a session and back from another address.
+                ps.hashedPassword = prefetch.hashedPassword;
+            }
         }
-    }
+        job.ps = ps;
 
-    private void manageRegisteredPlayers(PlayerStuff ps) {
-        ps.update();
-        plugin.getText().sendRegPlayerWlcMessage(ps.player);
-        teleportToLobby(ps.player);
-        setPlayerSpawnStuff(ps.player);
+        if (ps.status == Status.LOGGED_IN) {
+            if (plugin.getCfg().isAutologinEnabled()
+                    && ps.lastIP.equals(player.getAddress().getAddress())) {
+                ps.setStatus(Status.LOGGED_IN);
+                plugin.getText().sendAutologinMessage(player);
+                recordLogin(ps);
+                return Stage.DONE;
+            }
+            ps.setStatus(Status.REGISTERED);
+        }
+        job.welcome = ps.status;
+        return Stage.SNAPSHOT;
     }
 
-    private void manageUnregistered(PlayerStuff ps) {
-        ps.update();
-        plugin.getText().sendUnregPlayerWlcMessage(ps.player);
-        teleportToLobby(ps.player);
-        setPlayerSpawnStuff(ps.player);
+    /**
+     * Gets the number of players waiting to be sent to the lobby.
+     *
+     * @return
+     */
+    public int getPendingJoins() {
+        return playerToProcess.size();
     }
 
+    /**
+     * Gets the status of a player. Safe from any thread.
+     */
     private Status getStatus(Player player) {
-        Status stat = Status.UNREGISTERED;
-        PlayerStuff ps = players.get(player.getUniqueId());
-        if (ps != null) {
-            stat = ps.getStatus();
-        }
-        return stat;
+        AuthState state = authStates.get(player.getUniqueId());
+        return state == null ? Status.UNREGISTERED : state.status;
     }
 
+    /**
+     * Checks if a player may chat or run commands, telling it why not. Safe
+     * from any thread, it does not wait for the main thread.
+     *
+     * @param player
+     * @return
+     */
     public boolean isAllowedAction(Player player) {
         boolean ret = true;
         if (plugin.getCfg().isEnhanceSecurityEnabled()) {
@@ -422,23 +1082,76 @@ public class PlayerManager {
         return getStatus(player) == Status.LOGGED_IN;
     }
 
+    /**
+     * Registers a player. The password is hashed out of the main thread and the
+     * player is told about the result when it is done.
+     *
+     * @param player
+     * @param password
+     */
     public void register(Player player, String password) {
+        register(player, password, false);
+    }
+
+    /**
+     * Changes the password of a player. The password is hashed out of the main
+     * thread and the player is told about the result when it is done.
+     *
+     * @param player
+     * @param password
+     */
+    public void changePassword(Player player, String password) {
+        register(player, password, true);
+    }
+
+    private void register(Player player, String password, boolean change) {
         PlayerStuff ps = players.get(player.getUniqueId());
-        ps.typedPassword = password;
-        register(ps);
+        if (ps == null || ps.hashing) {
+            // Still in the join queue or waiting for a hash.
+            plugin.getText().sendBusyMsg(player);
+        } else {
+            register(ps, password, change);
+        }
     }
 
+    /**
+     * Logs a player in. The password is checked out of the main thread and the
+     * player is told about the result when it is done.
+     *
+     * @param player
+     * @param password
+     */
     public void login(Player player, String password) {
         PlayerStuff ps = players.get(player.getUniqueId());
-        ps.typedPassword = password;
-        login(ps);
+        if (ps == null || ps.hashing) {
+            plugin.getText().sendBusyMsg(player);
+        } else if (!tryLogin(ps)) {
+            plugin.getText().sendLogThrottledMsg(player);
+        } else {
+            login(ps, password);
+        }
+    }
+
+    /**
+     * Takes a login attempt from the IP address and the account of a player,
+     * so a flood is caught whether it comes from a single address or aims at
+     * a single account. The account is only charged if the address was
+     * allowed, so a throttled address cannot lock other players out.
+     */
+    private boolean tryLogin(PlayerStuff ps) {
+        LoginThrottle byAddress = loginByAddress;
+        LoginThrottle byAccount = loginByAccount;
+        boolean ret = true;
+        if (byAddress != null && byAccount != null) {
+            ret = byAddress.tryAcquire(addressKey(ps.getLastIP()))
+                    && byAccount.tryAcquire(accountKey(ps.playerUid));
+        }
+        return ret;
     }
 
     public void kickAllPlayersFromLobby() {
-        if (plugin.getCfg().getLobbyWorld() != null) {
-            for (Player player : plugin.getCfg().getLobbyWorld().getPlayers()) {
-                returnPlayerStuff(player);
-            }
+        for (Player player : plugin.getRegistry().copyPlayers()) {
+            returnPlayerStuff(player);
         }
         kickAllPlayers();
     }
@@ -451,5 +1164,9 @@ public class PlayerManager {
 
     public void removePlayer(Player player) {
         players.remove(player.getUniqueId());
+        authStates.remove(player.getUniqueId());
+        if (sessions != null) {
+            sessions.revoke(player.getUniqueId());
+        }
     }
 }
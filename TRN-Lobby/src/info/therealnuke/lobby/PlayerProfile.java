@@ -0,0 +1,225 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.bukkit.Bukkit;
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.io.BukkitObjectInputStream;
+import org.bukkit.util.io.BukkitObjectOutputStream;
+
+/**
+ * What a player had in the world it came from: where it was, its items,
+ * experience, health, food, game mode and flight. It is taken on the main
+ * thread and never changes, so it can be written from any thread.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public final class PlayerProfile {
+
+    private static final int VERSION = 1;
+
+    private final String worldName;
+    private final double x;
+    private final double y;
+    private final double z;
+    private final float yaw;
+    private final float pitch;
+    private final ItemStack[] items;
+    private final int foodLevel;
+    private final GameMode gameMode;
+    private final float experience;
+    private final int totalExperience;
+    private final double health;
+    private final boolean allowToFly;
+    private final boolean isFlying;
+    private final boolean isOp;
+
+    private PlayerProfile(String worldName, double x, double y, double z,
+            float yaw, float pitch, ItemStack[] items, int foodLevel,
+            GameMode gameMode, float experience, int totalExperience,
+            double health, boolean allowToFly, boolean isFlying, boolean isOp) {
+        this.worldName = worldName;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.yaw = yaw;
+        this.pitch = pitch;
+        this.items = items;
+        this.foodLevel = foodLevel;
+        this.gameMode = gameMode;
+        this.experience = experience;
+        this.totalExperience = totalExperience;
+        this.health = health;
+        this.allowToFly = allowToFly;
+        this.isFlying = isFlying;
+        this.isOp = isOp;
+    }
+
+    /**
+     * Takes the profile of a player. The items are copied, so later changes
+     * of the inventory do not change the profile. Must be called on the main
+     * thread.
+     *
+     * @param player
+     * @return
+     */
+    public static PlayerProfile of(Player player) {
+        Location location = player.getLocation();
+        ItemStack[] contents = player.getInventory().getContents();
+        ItemStack[] items = new ItemStack[contents.length];
+        for (int i = 0; i < contents.length; i++) {
+            if (contents[i] != null) {
+                items[i] = new ItemStack(contents[i]);
+            }
+        }
+        return new PlayerProfile(location.getWorld().getName(),
+                location.getX(), location.getY(), location.getZ(),
+                location.getYaw(), location.getPitch(), items,
+                player.getFoodLevel(), player.getGameMode(), player.getExp(),
+                player.getTotalExperience(), player.getHealth(),
+                player.getAllowFlight(), player.isFlying(), player.isOp());
+    }
+
+    /**
+     * Gives the profile back to a player. Must be called on the main thread.
+     *
+     * @param player
+     * @param teleport If it is true player is taken to where it was.
+     * @param inventory If it is true the items are given back.
+     */
+    public void apply(Player player, boolean teleport, boolean inventory) {
+        Location location = getLocation();
+        if (teleport && location != null) {
+            player.teleport(location);
+        }
+        player.setFoodLevel(foodLevel);
+        if (inventory) {
+            ItemStack[] contents = new ItemStack[items.length];
+            for (int i = 0; i < items.length; i++) {
+                if (items[i] != null) {
+                    contents[i] = new ItemStack(items[i]);
+                }
+            }
+            player.getInventory().setContents(contents);
+        }
+        player.setGameMode(gameMode);
+        player.setExp(experience);
+        player.setTotalExperience(totalExperience);
+        player.setHealth(health);
+        player.setAllowFlight(allowToFly);
+        player.setFlying(isFlying);
+        player.setOp(isOp);
+    }
+
+    /**
+     * Gets where the player was.
+     *
+     * @return The location or null if the world is no longer loaded.
+     */
+    public Location getLocation() {
+        World world = Bukkit.getWorld(worldName);
+        return world == null ? null : new Location(world, x, y, z, yaw, pitch);
+    }
+
+    public String getWorldName() {
+        return worldName;
+    }
+
+    public boolean isOp() {
+        return isOp;
+    }
+
+    /**
+     * Serializes the profile, compressed.
+     *
+     * @return
+     * @throws IOException
+     */
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new BukkitObjectOutputStream(
+                new GZIPOutputStream(bytes))) {
+            out.writeByte(VERSION);
+            out.writeUTF(worldName);
+            out.writeDouble(x);
+            out.writeDouble(y);
+            out.writeDouble(z);
+            out.writeFloat(yaw);
+            out.writeFloat(pitch);
+            out.writeInt(foodLevel);
+            out.writeUTF(gameMode.name());
+            out.writeFloat(experience);
+            out.writeInt(totalExperience);
+            out.writeDouble(health);
+            out.writeBoolean(allowToFly);
+            out.writeBoolean(isFlying);
+            out.writeBoolean(isOp);
+            out.writeObject(items);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a profile written by toBytes.
+     *
+     * @param data
+     * @return
+     * @throws IOException If the data is not a valid profile.
+     */
+    public static PlayerProfile fromBytes(byte[] data) throws IOException {
+        try (ObjectInputStream in = new BukkitObjectInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(data)))) {
+            int version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unknown profile version " + version);
+            }
+            String worldName = in.readUTF();
+            double x = in.readDouble();
+            double y = in.readDouble();
+            double z = in.readDouble();
+            float yaw = in.readFloat();
+            float pitch = in.readFloat();
+            int foodLevel = in.readInt();
+            GameMode gameMode = GameMode.valueOf(in.readUTF());
+            float experience = in.readFloat();
+            int totalExperience = in.readInt();
+            double health = in.readDouble();
+            boolean allowToFly = in.readBoolean();
+            boolean isFlying = in.readBoolean();
+            boolean isOp = in.readBoolean();
+            ItemStack[] items = (ItemStack[]) in.readObject();
+            return new PlayerProfile(worldName, x, y, z, yaw, pitch, items,
+                    foodLevel, gameMode, experience, totalExperience, health,
+                    allowToFly, isFlying, isOp);
+        } catch (ClassNotFoundException | IllegalArgumentException ex) {
+            throw new IOException(ex);
+        }
+    }
+}
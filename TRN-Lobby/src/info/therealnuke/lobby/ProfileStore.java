@@ -0,0 +1,229 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import info.therealnuke.tools.SerialExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps on disk the profile of the world each player in the lobby came from,
+ * until it is given back, so no items are lost if the server crashes. Files
+ * are written, read and deleted in the player's storage queue; the last
+ * profiles used are kept in memory and the profile of a joining player is
+ * read before it joins, so the main thread never waits for the disk.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class ProfileStore {
+
+    private final Main plugin;
+    private final File dir;
+    private final SerialExecutor<UUID> queue;
+    // Least recently used first. A null profile means there is none.
+    private final LinkedHashMap<UUID, Cached> cache;
+    // Profiles read for joining players, until they join.
+    private final ConcurrentHashMap<UUID, Cached> prefetched;
+
+    private static class Cached {
+
+        private final PlayerProfile profile;
+
+        private Cached(PlayerProfile profile) {
+            this.profile = profile;
+        }
+    }
+
+    /**
+     * @param plugin
+     * @param dir Folder of the profile files.
+     * @param queue Queue where each player's files are written in order.
+     * @param maxSize Profiles kept in memory.
+     */
+    public ProfileStore(Main plugin, File dir, SerialExecutor<UUID> queue,
+            final int maxSize) {
+        this.plugin = plugin;
+        this.dir = dir;
+        this.queue = queue;
+        this.prefetched = new ConcurrentHashMap<>();
+        this.cache = new LinkedHashMap<UUID, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Cached> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private File getFile(UUID uuid) {
+        return new File(dir, uuid + ".dat");
+    }
+
+    /**
+     * Keeps the profile of a player until it is deleted.
+     *
+     * @param uuid
+     * @param profile
+     */
+    public void save(final UUID uuid, final PlayerProfile profile) {
+        synchronized (cache) {
+            cache.put(uuid, new Cached(profile));
+        }
+        prefetched.remove(uuid);
+        queue.execute(uuid, new Runnable() {
+            @Override
+            public void run() {
+                File file = getFile(uuid);
+                File tmpFile = new File(dir, uuid + ".tmp");
+                try {
+                    dir.mkdirs();
+                    Files.write(tmpFile.toPath(), profile.toBytes());
+                    Files.move(tmpFile.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException ex) {
+                    plugin.alert("Unable to save the profile of " + uuid
+                            + ": " + ex.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets the profile of a player, once it is given back.
+     *
+     * @param uuid
+     */
+    public void delete(final UUID uuid) {
+        synchronized (cache) {
+            cache.put(uuid, new Cached(null));
+        }
+        prefetched.remove(uuid);
+        queue.execute(uuid, new Runnable() {
+            @Override
+            public void run() {
+                getFile(uuid).delete();
+            }
+        });
+    }
+
+    /**
+     * Gets the profile of a player from memory, never from the disk: the
+     * profile of a joining player was read by prefetch.
+     *
+     * @param uuid
+     * @return The profile or null if the player has none.
+     */
+    public PlayerProfile get(UUID uuid) {
+        synchronized (cache) {
+            Cached cached = cache.get(uuid);
+            if (cached != null) {
+                prefetched.remove(uuid);
+                return cached.profile;
+            }
+        }
+        Cached cached = prefetched.remove(uuid);
+        return cached == null ? null : cached.profile;
+    }
+
+    /**
+     * Reads the profile of a player who is logging in, in its storage queue,
+     * and waits for it, so it is in memory when the player joins. Called
+     * from the async pre login thread.
+     *
+     * @param uuid
+     * @throws IOException If the file cannot be read.
+     */
+    public void prefetch(final UUID uuid) throws IOException {
+        FutureTask<PlayerProfile> task = new FutureTask<>(new Callable<PlayerProfile>() {
+            @Override
+            public PlayerProfile call() throws IOException {
+                return load(uuid);
+            }
+        });
+        queue.execute(uuid, task);
+        try {
+            prefetched.put(uuid, new Cached(task.get(5, TimeUnit.SECONDS)));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (TimeoutException ex) {
+            throw new IOException("Timed out reading the profile of " + uuid, ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Drops the profile read for a player whose login was denied.
+     *
+     * @param uuid
+     */
+    public void discard(UUID uuid) {
+        prefetched.remove(uuid);
+    }
+
+    /**
+     * Reads the profile file, unless the profile was saved or deleted
+     * meanwhile. A file that is not a valid profile is renamed to .corrupt
+     * and the player goes on without profile, so it is not refused on every
+     * join.
+     */
+    private PlayerProfile load(UUID uuid) throws IOException {
+        File file = getFile(uuid);
+        PlayerProfile profile = null;
+        if (file.exists()) {
+            byte[] data = Files.readAllBytes(file.toPath());
+            try {
+                profile = PlayerProfile.fromBytes(data);
+            } catch (IOException | RuntimeException ex) {
+                File corrupt = new File(dir, uuid + ".dat.corrupt");
+                Files.move(file.toPath(), corrupt.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                plugin.alert("The profile of " + uuid + " is corrupt, moved to "
+                        + corrupt.getName() + ": " + ex.getMessage());
+            }
+        }
+        synchronized (cache) {
+            Cached cached = cache.get(uuid);
+            if (cached == null) {
+                cache.put(uuid, new Cached(profile));
+            } else {
+                profile = cached.profile;
+            }
+        }
+        return profile;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
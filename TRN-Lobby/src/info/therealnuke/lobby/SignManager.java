@@ -238,6 +238,7 @@ public class SignManager implements Listener {
     public void signTeleport(PlayerInteractEvent e) {
         SignData sd = signs.get(e.getClickedBlock().getLocation());
         if (sd != null) {
+            plugin.getChunkKeeper().touchDestination(sd.getTeleportLoc());
             e.getPlayer().teleport(sd.getTeleportLoc());
         }
     }
@@ -292,6 +293,26 @@ public class SignManager implements Listener {
         });
     }
 
+    /**
+     * Loads the chunks of the sign destinations in the next tick.
+     */
+    private void warmDestinations() {
+        Bukkit.getScheduler().runTask(plugin, new Runnable() {
+            @Override
+            public void run() {
+                plugin.getChunkKeeper().clearDestinations();
+                signsMutex.lock();
+                try {
+                    for (SignData sd : signs.values()) {
+                        plugin.getChunkKeeper().touchDestination(sd.getTeleportLoc());
+                    }
+                } finally {
+                    signsMutex.unlock();
+                }
+            }
+        });
+    }
+
     public void load() {
         Bukkit.getScheduler().runTaskAsynchronously(plugin, new Runnable() {
             @Override
@@ -326,7 +347,7 @@ public class SignManager implements Listener {
                 } finally {
                     signsMutex.unlock();
                 }
-
+                warmDestinations();
             }
         });
 
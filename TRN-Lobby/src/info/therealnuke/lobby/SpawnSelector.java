@@ -0,0 +1,155 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.bukkit.Location;
+
+/**
+ * Chooses the least crowded spawn point. It counts the players standing near
+ * each spawn point, kept up to date as they move, and gives the spawn point
+ * with less players. Spawn points with the same count are given in turns.
+ * The spawn points of every lobby instance are here, those of each instance
+ * one after another.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class SpawnSelector {
+
+    private final Location[] spawns;
+    private final double radiusSquared;
+    private final AtomicIntegerArray occupancy;
+    private final ConcurrentHashMap<UUID, Integer> zones;
+    private final AtomicInteger cursor;
+
+    /**
+     * @param spawns
+     * @param radius Distance up to which a player counts for a spawn point.
+     */
+    public SpawnSelector(List<Location> spawns, double radius) {
+        this.spawns = spawns.toArray(new Location[spawns.size()]);
+        this.radiusSquared = radius * radius;
+        this.occupancy = new AtomicIntegerArray(this.spawns.length);
+        this.zones = new ConcurrentHashMap<>();
+        this.cursor = new AtomicInteger();
+    }
+
+    /**
+     * Gets the least crowded spawn point and counts the player there, so
+     * players sent in the same tick are spread out.
+     *
+     * @param player
+     * @return A Location or null if there is no spawn point.
+     */
+    public Location next(UUID player) {
+        return next(player, 0, spawns.length);
+    }
+
+    /**
+     * Gets the least crowded spawn point of a range, the spawn points of a
+     * lobby instance.
+     *
+     * @param player
+     * @param first Index of the first spawn point.
+     * @param last Index after the last spawn point.
+     * @return A Location or null if the range is empty.
+     */
+    public Location next(UUID player, int first, int last) {
+        int count = last - first;
+        if (count <= 0) {
+            return null;
+        }
+        int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % count;
+        int best = first + start;
+        for (int i = 1; i < count; i++) {
+            int index = first + (start + i) % count;
+            if (occupancy.get(index) < occupancy.get(best)) {
+                best = index;
+            }
+        }
+        enter(player, best);
+        return spawns[best];
+    }
+
+    /**
+     * Updates the spawn point a player is near to.
+     *
+     * @param player
+     * @param location New location of the player.
+     */
+    public void update(UUID player, Location location) {
+        enter(player, zoneOf(location));
+    }
+
+    /**
+     * Stops counting a player.
+     *
+     * @param player
+     */
+    public void leave(UUID player) {
+        enter(player, -1);
+    }
+
+    private int zoneOf(Location location) {
+        int zone = -1;
+        double nearest = radiusSquared;
+        for (int i = 0; i < spawns.length; i++) {
+            if (spawns[i].getWorld() != location.getWorld()) {
+                continue;
+            }
+            double distance = spawns[i].distanceSquared(location);
+            if (distance <= nearest) {
+                nearest = distance;
+                zone = i;
+            }
+        }
+        return zone;
+    }
+
+    private void enter(UUID player, int zone) {
+        Integer old = zone < 0 ? zones.remove(player) : zones.put(player, zone);
+        if (old != null && old == zone) {
+            return;
+        }
+        if (old != null) {
+            occupancy.decrementAndGet(old);
+        }
+        if (zone >= 0) {
+            occupancy.incrementAndGet(zone);
+        }
+    }
+
+    /**
+     * Gets the players near a spawn point.
+     *
+     * @param index
+     * @return
+     */
+    public int getOccupancy(int index) {
+        return occupancy.get(index);
+    }
+
+    public int size() {
+        return spawns.length;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.lobby;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Sets up the lobby worlds so the server has almost nothing to simulate
+ * there: the game rules stop random ticks, the day cycle, the weather and
+ * mob spawning, and the chunks outside the lobby area are unloaded as soon
+ * as nobody is near them. The event cancellations stay as a fallback.
+ * <p>
+ * Those settings are saved with the world, so the previous ones are kept
+ * and put back when the mode is turned off, a world stops being a lobby or
+ * the plugin is disabled.
+ *
+ * @author <a href="mailto:therealnuke@gmail.com">TheRealNuke</a>
+ */
+public class StaticLobby {
+
+    private final Main plugin;
+    private BukkitTask unloadControl;
+    // Lobby area of each lobby world, in chunks: min x, min z, max x, max z.
+    private final IdentityHashMap<World, int[]> areas;
+    // Settings of each world before the static lobby changed them.
+    private final IdentityHashMap<World, WorldSettings> originals;
+    private int unloaded;
+
+    private static class WorldSettings {
+
+        // Previous value of each game rule changed.
+        private final LinkedHashMap<String, String> gameRules;
+        private final boolean allowMonsters;
+        private final boolean allowAnimals;
+        private final int monsterLimit;
+        private final int animalLimit;
+        private final int waterAnimalLimit;
+        private final int ambientLimit;
+        private final boolean keepSpawnInMemory;
+
+        private WorldSettings(World world) {
+            gameRules = new LinkedHashMap<>();
+            allowMonsters = world.getAllowMonsters();
+            allowAnimals = world.getAllowAnimals();
+            monsterLimit = world.getMonsterSpawnLimit();
+            animalLimit = world.getAnimalSpawnLimit();
+            waterAnimalLimit = world.getWaterAnimalSpawnLimit();
+            ambientLimit = world.getAmbientSpawnLimit();
+            keepSpawnInMemory = world.getKeepSpawnInMemory();
+        }
+
+        private void restore(World world) {
+            for (Map.Entry<String, String> rule : gameRules.entrySet()) {
+                world.setGameRuleValue(rule.getKey(), rule.getValue());
+            }
+            world.setSpawnFlags(allowMonsters, allowAnimals);
+            world.setMonsterSpawnLimit(monsterLimit);
+            world.setAnimalSpawnLimit(animalLimit);
+            world.setWaterAnimalSpawnLimit(waterAnimalLimit);
+            world.setAmbientSpawnLimit(ambientLimit);
+            world.setKeepSpawnInMemory(keepSpawnInMemory);
+        }
+    }
+
+    public StaticLobby(Main plugin) {
+        this.plugin = plugin;
+        this.areas = new IdentityHashMap<>();
+        this.originals = new IdentityHashMap<>();
+    }
+
+    /**
+     * Applies the world settings and starts unloading the chunks outside the
+     * lobby area. Called again when the configuration or the spawn points
+     * change; worlds left out get back their previous settings.
+     */
+    public void apply() {
+        stopUnloadControl();
+        areas.clear();
+        boolean enabled = plugin.getCfg().isStaticLobby()
+                && plugin.getCfg().isSpawnPointsSet();
+        Iterator<Map.Entry<World, WorldSettings>> it = originals.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<World, WorldSettings> original = it.next();
+            if (!enabled || !plugin.getCfg().isLobbyWorld(original.getKey())) {
+                original.getValue().restore(original.getKey());
+                it.remove();
+            }
+        }
+        if (!enabled) {
+            return;
+        }
+        for (LobbyInstance instance : plugin.getCfg().getInstances()) {
+            apply(instance.getWorld());
+        }
+        int radius = plugin.getCfg().getStaticLobbyRadius();
+        for (Location spawn : plugin.getCfg().getSpawnPoints()) {
+            int[] area = areas.get(spawn.getWorld());
+            if (area == null) {
+                area = new int[]{Integer.MAX_VALUE, Integer.MAX_VALUE,
+                    Integer.MIN_VALUE, Integer.MIN_VALUE};
+                areas.put(spawn.getWorld(), area);
+            }
+            area[0] = Math.min(area[0], (spawn.getBlockX() >> 4) - radius);
+            area[1] = Math.min(area[1], (spawn.getBlockZ() >> 4) - radius);
+            area[2] = Math.max(area[2], (spawn.getBlockX() >> 4) + radius);
+            area[3] = Math.max(area[3], (spawn.getBlockZ() >> 4) + radius);
+        }
+        startUnloadControl(plugin.getCfg().getStaticLobbyUnloadPeriod());
+    }
+
+    private void apply(World world) {
+        ConfigurationManager cfg = plugin.getCfg();
+        WorldSettings original = originals.get(world);
+        if (original == null) {
+            original = new WorldSettings(world);
+            originals.put(world, original);
+        }
+        setGameRule(world, original, "randomTickSpeed", "0");
+        setGameRule(world, original, "doDaylightCycle", "false");
+        setGameRule(world, original, "doWeatherCycle", "false");
+        world.setTime(cfg.getStaticLobbyTime());
+        world.setStorm(false);
+        world.setThundering(false);
+        // Without the weather cycle game rule the clear weather lasts this.
+        world.setWeatherDuration(Integer.MAX_VALUE);
+        if (!cfg.blockIgniteAllowed()) {
+            setGameRule(world, original, "doFireTick", "false");
+        }
+        if (!cfg.creatureSpawnAllowed()) {
+            setGameRule(world, original, "doMobSpawning", "false");
+            world.setSpawnFlags(false, false);
+            world.setMonsterSpawnLimit(0);
+            world.setAnimalSpawnLimit(0);
+            world.setWaterAnimalSpawnLimit(0);
+            world.setAmbientSpawnLimit(0);
+        }
+        world.setKeepSpawnInMemory(cfg.isKeepWorldSpawn());
+    }
+
+    private static void setGameRule(World world, WorldSettings original,
+            String rule, String value) {
+        // Older servers do not know every game rule.
+        if (world.isGameRule(rule)) {
+            if (!original.gameRules.containsKey(rule)) {
+                original.gameRules.put(rule, world.getGameRuleValue(rule));
+            }
+            world.setGameRuleValue(rule, value);
+        }
+    }
+
+    private void startUnloadControl(long period) {
+        unloadControl = Bukkit.getScheduler().runTaskTimer(plugin, new Runnable() {
+            @Override
+            public void run() {
+                unloadOutside();
+            }
+        }, period, period);
+    }
+
+    private void stopUnloadControl() {
+        if (unloadControl != null) {
+            unloadControl.cancel();
+            unloadControl = null;
+        }
+    }
+
+    /**
+     * Asks the server to unload the chunks outside the lobby area. The
+     * server keeps those near players, and the ChunkKeeper those kept for
+     * teleports.
+     */
+    private void unloadOutside() {
+        for (Map.Entry<World, int[]> entry : areas.entrySet()) {
+            World world = entry.getKey();
+            int[] area = entry.getValue();
+            for (Chunk chunk : world.getLoadedChunks()) {
+                int x = chunk.getX();
+                int z = chunk.getZ();
+                if ((x < area[0] || x > area[2] || z < area[1] || z > area[3])
+                        && !plugin.getChunkKeeper().isKept(chunk)) {
+                    world.unloadChunkRequest(x, z);
+                    unloaded++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops unloading chunks and gives the lobby worlds back their previous
+     * settings.
+     */
+    public void finish() {
+        stopUnloadControl();
+        for (Map.Entry<World, WorldSettings> original : originals.entrySet()) {
+            original.getValue().restore(original.getKey());
+        }
+        originals.clear();
+    }
+
+    /**
+     * Gets the number of unloads requested for chunks outside the lobby area.
+     *
+     * @return
+     */
+    public int getUnloaded() {
+        return unloaded;
+    }
+}
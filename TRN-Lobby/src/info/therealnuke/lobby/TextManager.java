@@ -21,7 +21,11 @@ package info.therealnuke.lobby;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import net.md_5.bungee.api.ChatColor;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
 import org.bukkit.Bukkit;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -34,110 +38,173 @@ import org.bukkit.entity.Player;
 public class TextManager {
 
     private final Main plugin;
-    private final YamlConfiguration text;
+    // Compiled messages by ordinal, replaced as a whole when text.yml is
+    // reloaded.
+    private volatile MessageTemplate[] templates;
 
     public TextManager(Main plugin) {
         this.plugin = plugin;
-        text = new YamlConfiguration();
+        templates = new MessageTemplate[Message.values().length];
+        for (Message message : Message.values()) {
+            templates[message.ordinal()]
+                    = new MessageTemplate(Collections.<String>emptyList());
+        }
     }
 
+    /**
+     * Loads text.yml and compiles its messages. Messages missing from the
+     * file, such as those added after it was saved, are taken from the
+     * text.yml of the plugin. It can be called from any thread: the messages
+     * are compiled apart and then replace the current ones.
+     *
+     * @throws IOException
+     * @throws FileNotFoundException
+     * @throws InvalidConfigurationException
+     */
     public void init() throws IOException, FileNotFoundException,
             InvalidConfigurationException {
         File textsFile = new File(plugin.getDataFolder(), "text.yml");
         if (!textsFile.exists()) {
             plugin.saveResource("text.yml", true);
         }
+        YamlConfiguration text = new YamlConfiguration();
         text.load(textsFile);
+        YamlConfiguration defaults = new YamlConfiguration();
+        try (Reader reader = new InputStreamReader(
+                plugin.getResource("text.yml"), StandardCharsets.UTF_8)) {
+            defaults.load(reader);
+        }
+        text.setDefaults(defaults);
+        MessageTemplate[] compiled = new MessageTemplate[Message.values().length];
+        for (Message message : Message.values()) {
+            List<String> lines = text.getStringList(message.getPath());
+            if (lines.isEmpty() && !text.isList(message.getPath())) {
+                String line = text.getString(message.getPath());
+                if (line == null) {
+                    line = message.getDefault();
+                }
+                if (line != null) {
+                    lines = Collections.singletonList(line);
+                }
+            }
+            compiled[message.ordinal()] = new MessageTemplate(lines);
+        }
+        templates = compiled;
     }
     
-    public void sendTextMessage(final Player player, final String textMessage) {
-        Bukkit.getScheduler().runTask(plugin, new Runnable() {
-            @Override
-            public void run() {
-                for (String line : text.getStringList(textMessage)) {
-                    plugin.sendMessage(player,
-                            line.replace("%PLAYER%", player.getName()));
+    /**
+     * Sends a message of text.yml. It is rendered at once and sent at once
+     * on the main thread and in the next tick from other threads.
+     *
+     * @param player
+     * @param message
+     */
+    public void sendTextMessage(final Player player, Message message) {
+        final String[] lines = templates[message.ordinal()].render(
+                plugin.getCfg().getPrefix(), player.getName());
+        if (Bukkit.isPrimaryThread()) {
+            player.sendMessage(lines);
+        } else {
+            Bukkit.getScheduler().runTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    player.sendMessage(lines);
                 }
-            }
-        });
+            });
+        }
     }
 
     public void sendUnregPlayerWlcMessage(Player player) {
-        sendTextMessage(player, "unregistered-players.welcome");
+        sendTextMessage(player, Message.UNREG_WELCOME);
     }
 
     public void sendRegPlayerWlcMessage(Player player) {
-        sendTextMessage(player, "registered-players.welcome");
+        sendTextMessage(player, Message.REG_WELCOME);
     }
 
     public void sendLoginSuccessMessage(Player player) {
-        sendTextMessage(player, "registered-players.login.successful");
+        sendTextMessage(player, Message.LOGIN_SUCCESSFUL);
     }
 
     public void sendLoginUnsuccessMessage(Player player) {
-        sendTextMessage(player, "registered-players.login.unsuccessful");
+        sendTextMessage(player, Message.LOGIN_UNSUCCESSFUL);
     }
 
     public void sendAutologinMessage(Player player) {
-        sendTextMessage(player, "registered-players.autologin");
+        sendTextMessage(player, Message.AUTOLOGIN);
     }
 
     public void sendNotAllowedToRegPl(Player player) {
-        sendTextMessage(player, "registered-players.notallowed");
+        sendTextMessage(player, Message.REG_NOT_ALLOWED);
     }
 
     public void sendNotAllowedToUnregPl(Player player) {
-        sendTextMessage(player, "unregistered-players.notallowed");
+        sendTextMessage(player, Message.UNREG_NOT_ALLOWED);
     }
 
     public void sendRegMissingPasswordMsg(Player player) {
-        sendTextMessage(player, "commands.register.missing-password");
+        sendTextMessage(player, Message.REGISTER_MISSING_PASSWORD);
     }
 
     public void sendRegFewCharsMsg(Player player) {
-        sendTextMessage(player, "commands.register.few-password-chars");
+        sendTextMessage(player, Message.REGISTER_FEW_CHARS);
     }
     public void sendRegdisallowPwMsg(Player player) {
-        sendTextMessage(player, "commands.register.disallowed-password");
+        sendTextMessage(player, Message.REGISTER_DISALLOWED_PASSWORD);
     }
     public void sendAlreadyRegMsg(Player player) {
-        sendTextMessage(player, "commands.register.already-registered");
+        sendTextMessage(player, Message.REGISTER_ALREADY_REGISTERED);
     }
     public void sendRegSuccessMsg(Player player) {
-        sendTextMessage(player, "commands.register.success");
+        sendTextMessage(player, Message.REGISTER_SUCCESS);
     }
     
     public void sendLogSuccessMsg(Player player) {
-        sendTextMessage(player, "commands.login.success");
+        sendTextMessage(player, Message.LOGIN_SUCCESS);
     }
     public void sendLogNotRegMsg(Player player) {
-        sendTextMessage(player, "commands.login.not-registered");
+        sendTextMessage(player, Message.LOGIN_NOT_REGISTERED);
     }
     public void sendLogAlreadyMsg(Player player) {
-        sendTextMessage(player, "commands.login.already-logged");
+        sendTextMessage(player, Message.LOGIN_ALREADY_LOGGED);
     }
     
+    public void sendLogThrottledMsg(Player player) {
+        sendTextMessage(player, Message.LOGIN_THROTTLED);
+    }
+
     public void sendLogNoPassMsg(Player player) {
-        sendTextMessage(player, "commands.login.missing-password");
+        sendTextMessage(player, Message.LOGIN_MISSING_PASSWORD);
     }
     
     public void sendCPNotRegMsg(Player player) {
-        sendTextMessage(player, "commands.changepassword.not-registered");
+        sendTextMessage(player, Message.CHANGEPASSWORD_NOT_REGISTERED);
     }
     
     public void sendCPNotLogMsg(Player player) {
-        sendTextMessage(player, "commands.changepassword.not-logged");
+        sendTextMessage(player, Message.CHANGEPASSWORD_NOT_LOGGED);
     }
     
     public void sendCPSuccessMsg(Player player) {
-        sendTextMessage(player, "commands.changepassword.success");
+        sendTextMessage(player, Message.CHANGEPASSWORD_SUCCESS);
     }
     public void sendCPMissingPasswordMsg(Player player) {
-        sendTextMessage(player, "commands.changepassword.missing-password");
+        sendTextMessage(player, Message.CHANGEPASSWORD_MISSING_PASSWORD);
+    }
+    public void sendBusyMsg(Player player) {
+        sendTextMessage(player, Message.BUSY);
     }
     public String getLogOutMsg() {
-        return ChatColor.translateAlternateColorCodes('&', 
-                text.getString("commands.logout.kick-message"));
+        return templates[Message.LOGOUT_KICK.ordinal()].getText();
+    }
+    public String getStorageErrorMsg() {
+        return templates[Message.STORAGE_ERROR.ordinal()].getText();
+    }
+    public String getJoinThrottledMsg() {
+        return templates[Message.JOIN_THROTTLED.ordinal()].getText();
+    }
+    public String getLobbyFullMsg() {
+        return templates[Message.LOBBY_FULL.ordinal()].getText();
     }
     
 }
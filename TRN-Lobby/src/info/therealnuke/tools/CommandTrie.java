@@ -0,0 +1,119 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.util.Arrays;
+
+/**
+ * Case insensitive trie of command names. A command line is matched in
+ * place, char by char, without copying or lower casing it, so matching every
+ * command typed on the server allocates nothing.
+ * <p>
+ * It is built once and then only read, so it can be shared by any thread.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ * @param <V> Value of each command.
+ */
+public class CommandTrie<V> {
+
+    private final Node root;
+    private int size;
+
+    private static class Node {
+
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Object value;
+
+        private Node child(char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node addChild(char key) {
+            Node child = child(key);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = key;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    public CommandTrie() {
+        this.root = new Node();
+    }
+
+    /**
+     * Adds a command, replacing the value of the same command if it was
+     * already there.
+     *
+     * @param command The name of the command, without slash.
+     * @param value
+     */
+    public void put(String command, V value) {
+        if (command.isEmpty() || command.indexOf(' ') >= 0) {
+            throw new IllegalArgumentException("Invalid command name: " + command);
+        }
+        Node node = root;
+        for (int i = 0; i < command.length(); i++) {
+            node = node.addChild(Character.toLowerCase(command.charAt(i)));
+        }
+        if (node.value == null) {
+            size++;
+        }
+        node.value = value;
+    }
+
+    /**
+     * Finds the command of a command line, the first word after the slash.
+     *
+     * @param line The command line, as typed by the player.
+     * @return The value of the command or null if it is not in the trie.
+     */
+    @SuppressWarnings("unchecked")
+    public V match(String line) {
+        if (line.isEmpty() || line.charAt(0) != '/') {
+            return null;
+        }
+        Node node = root;
+        for (int i = 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == ' ') {
+                break;
+            }
+            node = node.child(Character.toLowerCase(c));
+            if (node == null) {
+                return null;
+            }
+        }
+        return (V) node.value;
+    }
+
+    public int size() {
+        return size;
+    }
+}
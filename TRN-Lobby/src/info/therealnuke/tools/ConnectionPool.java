@@ -0,0 +1,121 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal pool of JDBC connections. Connections are opened on demand up to a
+ * maximum and kept open for reuse.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class ConnectionPool {
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final ArrayBlockingQueue<Connection> idle;
+    private final AtomicInteger opened;
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, String user, String password, int maxSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+        this.opened = new AtomicInteger();
+    }
+
+    /**
+     * Gets a connection, waiting up to 10 seconds for one to be released if
+     * all of them are in use.
+     *
+     * @return
+     * @throws SQLException
+     */
+    public Connection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool closed.");
+        }
+        Connection connection = idle.poll();
+        if (connection == null) {
+            if (opened.incrementAndGet() <= maxSize) {
+                try {
+                    connection = DriverManager.getConnection(url, user, password);
+                } catch (SQLException ex) {
+                    opened.decrementAndGet();
+                    throw ex;
+                }
+            } else {
+                opened.decrementAndGet();
+                try {
+                    connection = idle.poll(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                if (connection == null) {
+                    throw new SQLException("Timeout waiting for a database connection.");
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Returns a connection to the pool.
+     *
+     * @param connection
+     */
+    public void release(Connection connection) {
+        boolean reusable;
+        try {
+            reusable = !closed && !connection.isClosed() && connection.getAutoCommit();
+        } catch (SQLException ex) {
+            reusable = false;
+        }
+        if (!reusable || !idle.offer(connection)) {
+            opened.decrementAndGet();
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                // Already unusable.
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections. Connections in use are closed when they are
+     * released.
+     */
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            release(connection);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Memory mapped, open addressed hash table of player credentials keyed by the
+ * two longs of the player UUID. A Bloom filter kept in the heap answers most
+ * lookups of unknown players without probing the table.
+ * <p>
+ * Writes are serialized by a lock. Reads take no lock and allocate nothing:
+ * they are optimistic reads of a StampedLock, write locked while a slot
+ * changes, and are retried if a write happened meanwhile, so they can be
+ * done from any thread.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class CredentialIndex {
+
+    public static final byte EMPTY = 0;
+    public static final byte REGISTERED = 1;
+    public static final byte DELETED = 2;
+
+    public static final int MAX_HASH_LENGTH = 110;
+
+    private static final int MAGIC = 0x54524E49;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 128;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int BLOOM_HASHES = 7;
+
+    // Header offsets.
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_COUNT = 12;
+    private static final int H_CLEAN = 16;
+    private static final int H_STAMP = 24;
+    private static final int H_RECORDS = 32;
+    private static final int H_LOGINS = 36;
+
+    // Slot offsets.
+    private static final int S_MSB = 0;
+    private static final int S_LSB = 8;
+    private static final int S_STATUS = 16;
+    private static final int S_HASH_LEN = 17;
+    private static final int S_HASH = 18;
+
+    private final File indexFile;
+    private final ReentrantLock writeLock;
+    private volatile Table table;
+    // Write locked while a slot or the table changes, for optimistic reads.
+    private final StampedLock stamps;
+    private int stampedRecords;
+    private int stampedLogins;
+
+    private static class Table {
+
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final int mask;
+        private final long[] bloom;
+        private final int bloomMask;
+        private int count;
+
+        private Table(RandomAccessFile file, MappedByteBuffer buffer,
+                int capacity, int count) {
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.count = count;
+            // At least 32 bits per entry at the maximum load factor.
+            int bloomBits = Integer.highestOneBit(capacity * 8) * 2;
+            this.bloom = new long[bloomBits >>> 6];
+            this.bloomMask = bloomBits - 1;
+        }
+
+        private int slotOffset(int slot) {
+            return HEADER_SIZE + slot * SLOT_SIZE;
+        }
+    }
+
+    public CredentialIndex(File indexFile) {
+        this.indexFile = indexFile;
+        this.writeLock = new ReentrantLock();
+        this.stamps = new StampedLock();
+    }
+
+    /**
+     * Maps the index file. If it was not closed cleanly, or it does not match
+     * the given stamp, it is cleared and must be rebuilt by the caller.
+     *
+     * @param expectedStamp Stamp of the data the index must reflect.
+     * @return true if the index is valid, false if it has been cleared.
+     * @throws IOException
+     */
+    public boolean open(long expectedStamp) throws IOException {
+        writeLock.lock();
+        try {
+            boolean valid = false;
+            if (indexFile.exists() && indexFile.length() >= HEADER_SIZE) {
+                RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+                MappedByteBuffer header = raf.getChannel()
+                        .map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                int capacity = header.getInt(H_CAPACITY);
+                valid = header.getInt(H_MAGIC) == MAGIC
+                        && header.getInt(H_VERSION) == VERSION
+                        && header.get(H_CLEAN) == 1
+                        && header.getLong(H_STAMP) == expectedStamp
+                        && Integer.bitCount(capacity) == 1
+                        && raf.length() == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+                if (valid) {
+                    stampedRecords = header.getInt(H_RECORDS);
+                    stampedLogins = header.getInt(H_LOGINS);
+                    Table t = map(raf, capacity, header.getInt(H_COUNT));
+                    rebuildBloom(t);
+                    t.buffer.put(H_CLEAN, (byte) 0);
+                    table = t;
+                } else {
+                    raf.close();
+                }
+            }
+            if (!valid) {
+                table = create(indexFile, MIN_CAPACITY);
+            }
+            return valid;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static Table map(RandomAccessFile raf, int capacity, int count)
+            throws IOException {
+        long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        raf.setLength(size);
+        MappedByteBuffer buffer = raf.getChannel()
+                .map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Table(raf, buffer, capacity, count);
+    }
+
+    private static Table create(File file, int capacity) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        Table t = map(new RandomAccessFile(file, "rw"), capacity, 0);
+        t.buffer.putInt(H_MAGIC, MAGIC);
+        t.buffer.putInt(H_VERSION, VERSION);
+        t.buffer.putInt(H_CAPACITY, capacity);
+        t.buffer.putInt(H_COUNT, 0);
+        t.buffer.put(H_CLEAN, (byte) 0);
+        return t;
+    }
+
+    private static long mix(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void bloomAdd(Table t, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (h1 + i * h2) & t.bloomMask;
+            t.bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static boolean bloomTest(Table t, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (h1 + i * h2) & t.bloomMask;
+            if ((t.bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void rebuildBloom(Table t) {
+        for (int slot = 0; slot < t.capacity; slot++) {
+            int offset = t.slotOffset(slot);
+            if (t.buffer.get(offset + S_STATUS) == REGISTERED) {
+                bloomAdd(t, mix(t.buffer.getLong(offset + S_MSB),
+                        t.buffer.getLong(offset + S_LSB)));
+            }
+        }
+    }
+
+    /**
+     * Finds the slot of a key, or the empty slot where it should be inserted.
+     */
+    private static int probe(Table t, long msb, long lsb, long hash) {
+        int slot = (int) hash & t.mask;
+        while (true) {
+            int offset = t.slotOffset(slot);
+            if (t.buffer.get(offset + S_STATUS) == EMPTY
+                    || (t.buffer.getLong(offset + S_MSB) == msb
+                    && t.buffer.getLong(offset + S_LSB) == lsb)) {
+                return slot;
+            }
+            slot = (slot + 1) & t.mask;
+        }
+    }
+
+    /**
+     * Gets the status of a player without allocating. Safe to be called from
+     * any thread.
+     *
+     * @param msb Most significant bits of the player UUID.
+     * @param lsb Least significant bits of the player UUID.
+     * @return REGISTERED or EMPTY.
+     */
+    public byte getStatus(long msb, long lsb) {
+        long hash = mix(msb, lsb);
+        byte status;
+        long stamp;
+        Table t;
+        do {
+            stamp = stamps.tryOptimisticRead();
+            t = table;
+            if (t == null || !bloomTest(t, hash)) {
+                return EMPTY;
+            }
+            int offset = t.slotOffset(probe(t, msb, lsb, hash));
+            status = t.buffer.get(offset + S_STATUS);
+        } while (!stamps.validate(stamp));
+        return status == REGISTERED ? REGISTERED : EMPTY;
+    }
+
+    public boolean isRegistered(UUID uuid) {
+        return getStatus(uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits()) == REGISTERED;
+    }
+
+    /**
+     * Gets the stored hash of a player. Safe to be called from any thread.
+     *
+     * @param uuid
+     * @return The hash or null if the player is not registered.
+     */
+    public String getHash(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        long hash = mix(msb, lsb);
+        byte[] bytes = new byte[MAX_HASH_LENGTH];
+        int length;
+        long stamp;
+        do {
+            stamp = stamps.tryOptimisticRead();
+            Table t = table;
+            length = -1;
+            if (t == null || !bloomTest(t, hash)) {
+                return null;
+            }
+            int offset = t.slotOffset(probe(t, msb, lsb, hash));
+            if (t.buffer.get(offset + S_STATUS) == REGISTERED) {
+                length = Math.min(t.buffer.get(offset + S_HASH_LEN) & 0xFF,
+                        MAX_HASH_LENGTH);
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = t.buffer.get(offset + S_HASH + i);
+                }
+            }
+        } while (!stamps.validate(stamp));
+        return length < 0 ? null : new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Stores or replaces the hash of a player.
+     *
+     * @param uuid
+     * @param hash An ASCII hash of at most MAX_HASH_LENGTH chars.
+     * @throws IOException
+     */
+    public void put(UUID uuid, String hash) throws IOException {
+        byte[] bytes = hash.getBytes(StandardCharsets.ISO_8859_1);
+        if (bytes.length > MAX_HASH_LENGTH) {
+            throw new IOException("Hash too long for the credential index.");
+        }
+        writeLock.lock();
+        try {
+            Table t = table;
+            if ((t.count + 1) * 2 > t.capacity) {
+                t = grow(t);
+            }
+            write(t, uuid.getMostSignificantBits(),
+                    uuid.getLeastSignificantBits(), REGISTERED, bytes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Marks a player as no longer registered.
+     *
+     * @param uuid
+     */
+    public void remove(UUID uuid) {
+        writeLock.lock();
+        try {
+            Table t = table;
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            int offset = t.slotOffset(probe(t, msb, lsb, mix(msb, lsb)));
+            if (t.buffer.get(offset + S_STATUS) == REGISTERED) {
+                long stamp = stamps.writeLock();
+                try {
+                    t.buffer.put(offset + S_STATUS, DELETED);
+                } finally {
+                    stamps.unlockWrite(stamp);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void write(Table t, long msb, long lsb, byte status, byte[] bytes) {
+        long hash = mix(msb, lsb);
+        int offset = t.slotOffset(probe(t, msb, lsb, hash));
+        boolean isNew = t.buffer.get(offset + S_STATUS) == EMPTY;
+        long stamp = stamps.writeLock();
+        try {
+            t.buffer.putLong(offset + S_MSB, msb);
+            t.buffer.putLong(offset + S_LSB, lsb);
+            t.buffer.put(offset + S_HASH_LEN, (byte) bytes.length);
+            for (int i = 0; i < bytes.length; i++) {
+                t.buffer.put(offset + S_HASH + i, bytes[i]);
+            }
+            t.buffer.put(offset + S_STATUS, status);
+            bloomAdd(t, hash);
+        } finally {
+            stamps.unlockWrite(stamp);
+        }
+        if (isNew) {
+            t.count++;
+            t.buffer.putInt(H_COUNT, t.count);
+        }
+    }
+
+    /**
+     * Doubles the table into a new file, dropping deleted entries.
+     */
+    private Table grow(Table old) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        Table t = create(tmpFile, old.capacity * 2);
+        byte[] bytes = new byte[MAX_HASH_LENGTH];
+        for (int slot = 0; slot < old.capacity; slot++) {
+            int offset = old.slotOffset(slot);
+            if (old.buffer.get(offset + S_STATUS) == REGISTERED) {
+                int length = old.buffer.get(offset + S_HASH_LEN) & 0xFF;
+                byte[] copy = length == bytes.length ? bytes : new byte[length];
+                for (int i = 0; i < length; i++) {
+                    copy[i] = old.buffer.get(offset + S_HASH + i);
+                }
+                write(t, old.buffer.getLong(offset + S_MSB),
+                        old.buffer.getLong(offset + S_LSB), REGISTERED, copy);
+            }
+        }
+        long stamp = stamps.writeLock();
+        try {
+            table = t;
+        } finally {
+            stamps.unlockWrite(stamp);
+        }
+        old.file.close();
+        // Replaced without deleting it first, it may still be mapped.
+        Files.move(tmpFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        return t;
+    }
+
+    /**
+     * Number of used slots, deleted players included.
+     *
+     * @return
+     */
+    public int size() {
+        Table t = table;
+        return t == null ? 0 : t.count;
+    }
+
+    /**
+     * Receives the live entries of the index.
+     */
+    public interface Visitor {
+
+        void visit(UUID uuid, String hash);
+    }
+
+    /**
+     * Visits every registered player. Writes are blocked meanwhile.
+     *
+     * @param visitor
+     */
+    public void forEach(Visitor visitor) {
+        writeLock.lock();
+        try {
+            Table t = table;
+            byte[] bytes = new byte[MAX_HASH_LENGTH];
+            for (int slot = 0; slot < t.capacity; slot++) {
+                int offset = t.slotOffset(slot);
+                if (t.buffer.get(offset + S_STATUS) == REGISTERED) {
+                    int length = t.buffer.get(offset + S_HASH_LEN) & 0xFF;
+                    for (int i = 0; i < length; i++) {
+                        bytes[i] = t.buffer.get(offset + S_HASH + i);
+                    }
+                    visitor.visit(new UUID(t.buffer.getLong(offset + S_MSB),
+                            t.buffer.getLong(offset + S_LSB)),
+                            new String(bytes, 0, length, StandardCharsets.ISO_8859_1));
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the record count stored on the last clean close.
+     *
+     * @return
+     */
+    public int getStampedRecords() {
+        return stampedRecords;
+    }
+
+    /**
+     * Gets the live login count stored on the last clean close.
+     *
+     * @return
+     */
+    public int getStampedLogins() {
+        return stampedLogins;
+    }
+
+    /**
+     * Flushes the table, marks it as clean for the given stamp and closes it.
+     *
+     * @param stamp Stamp of the data the index reflects.
+     * @param records Number of source records, returned on the next open.
+     * @param logins Number of live login records, returned on the next open.
+     * @throws IOException
+     */
+    public void close(long stamp, int records, int logins) throws IOException {
+        writeLock.lock();
+        try {
+            Table t = table;
+            if (t != null) {
+                t.buffer.putLong(H_STAMP, stamp);
+                t.buffer.putInt(H_RECORDS, records);
+                t.buffer.putInt(H_LOGINS, logins);
+                t.buffer.put(H_CLEAN, (byte) 1);
+                t.buffer.force();
+                t.file.close();
+                table = null;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only credential store. Every change is appended to a single log file
+ * and the latest value of each player is kept in a memory mapped index, so
+ * reads never touch the disk. The log is rewritten with only the live records
+ * on compaction.
+ * <p>
+ * Logins are appended too, but they are not indexed: looking players up by
+ * address scans the log.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class CredentialLog implements CredentialStore {
+
+    private static final int MAGIC = 0x54524E43;
+    private static final byte VERSION = 2;
+    private static final int HEADER_SIZE = 5;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte LOGIN = 3;
+    private static final long COMPACTION_PERIOD = TimeUnit.MINUTES.toMillis(5);
+
+    private final File logFile;
+    private final CredentialIndex index;
+    private final ReentrantLock logLock;
+    private final ReentrantLock compactLock;
+    private DataOutputStream out;
+    private long logSize;
+    private int records;
+    // Players with a login record kept by the last compaction or replay.
+    private int logins;
+    private volatile long lastCompactionCheck;
+
+    public CredentialLog(File logFile, File indexFile) {
+        this.logFile = logFile;
+        this.index = new CredentialIndex(indexFile);
+        this.logLock = new ReentrantLock();
+        this.compactLock = new ReentrantLock();
+    }
+
+    /**
+     * Opens the index and the log for appending. The log is only replayed into
+     * the index when the index was not closed cleanly after the last write. A
+     * truncated last record, left by a crash in the middle of a write, is
+     * discarded.
+     *
+     * @return true if the log did not exist and has been created.
+     * @throws IOException
+     */
+    @Override
+    public boolean open() throws IOException {
+        boolean created = false;
+        logLock.lock();
+        try {
+            records = 0;
+            logins = 0;
+            if (!logFile.exists() || logFile.length() < HEADER_SIZE) {
+                writeHeader(logFile);
+                index.open(-1);
+                created = true;
+                logSize = HEADER_SIZE;
+            } else if (index.open(logFile.length())) {
+                logSize = logFile.length();
+                records = index.getStampedRecords();
+                logins = index.getStampedLogins();
+            } else {
+                logSize = replay();
+                try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                    if (raf.length() > logSize) {
+                        raf.setLength(logSize);
+                    }
+                }
+            }
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(logFile, true)));
+        } finally {
+            logLock.unlock();
+        }
+        return created;
+    }
+
+    private static void writeHeader(File file) throws IOException {
+        try (DataOutputStream header = new DataOutputStream(
+                new FileOutputStream(file))) {
+            header.writeInt(MAGIC);
+            header.writeByte(VERSION);
+        }
+    }
+
+    /**
+     * Receives the records of the log while it is scanned.
+     */
+    private interface RecordVisitor {
+
+        void visit(byte type, UUID uuid, String value, long time) throws IOException;
+    }
+
+    /**
+     * Reads the log records up to a limit.
+     *
+     * @return The size of the valid part of the log.
+     */
+    private long scan(long limit, RecordVisitor visitor) throws IOException {
+        long validSize;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(logFile)))) {
+            byte version = in.readInt() == MAGIC ? in.readByte() : -1;
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unknown credential log format: " + logFile);
+            }
+            validSize = HEADER_SIZE;
+            try {
+                while (validSize < limit) {
+                    byte type = in.readByte();
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    long recordSize = 17;
+                    String value = null;
+                    long time = 0;
+                    if (type == PUT) {
+                        value = in.readUTF();
+                        recordSize += 2 + utfLength(value);
+                    } else if (type == LOGIN) {
+                        time = in.readLong();
+                        value = in.readUTF();
+                        recordSize += 10 + utfLength(value);
+                    } else if (type != DELETE) {
+                        break;
+                    }
+                    visitor.visit(type, uuid, value, time);
+                    validSize += recordSize;
+                }
+            } catch (EOFException ex) {
+                // End of the log or a partially written record.
+            }
+        }
+        return validSize;
+    }
+
+    private long replay() throws IOException {
+        final Set<UUID> loggedIn = new HashSet<>();
+        long validSize = scan(Long.MAX_VALUE, new RecordVisitor() {
+            @Override
+            public void visit(byte type, UUID uuid, String value, long time)
+                    throws IOException {
+                if (type == PUT) {
+                    index.put(uuid, value);
+                } else if (type == DELETE) {
+                    index.remove(uuid);
+                    loggedIn.remove(uuid);
+                } else if (type == LOGIN) {
+                    loggedIn.add(uuid);
+                }
+                records++;
+            }
+        });
+        logins = loggedIn.size();
+        return validSize;
+    }
+
+    /**
+     * Gets the stored hash of a player. Safe to be called from any thread.
+     *
+     * @param uuid
+     * @return The hashed password or null if the player is not registered.
+     */
+    @Override
+    public String getHash(UUID uuid) {
+        return index.getHash(uuid);
+    }
+
+    /**
+     * Checks if a player is registered without allocating. Safe to be called
+     * from any thread.
+     *
+     * @param uuid
+     * @return
+     */
+    @Override
+    public boolean isRegistered(UUID uuid) {
+        return index.isRegistered(uuid);
+    }
+
+    /**
+     * Appends a new hash for a player.
+     *
+     * @param uuid
+     * @param hash
+     * @throws IOException
+     */
+    @Override
+    public void setHash(UUID uuid, String hash) throws IOException {
+        if (hash.length() > CredentialIndex.MAX_HASH_LENGTH) {
+            throw new IOException("Hash too long for the credential log.");
+        }
+        logLock.lock();
+        try {
+            out.writeByte(PUT);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            out.writeUTF(hash);
+            out.flush();
+            logSize += 19 + utfLength(hash);
+            records++;
+            index.put(uuid, hash);
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a removal record for a player.
+     *
+     * @param uuid
+     * @throws IOException
+     */
+    @Override
+    public void remove(UUID uuid) throws IOException {
+        logLock.lock();
+        try {
+            if (index.isRegistered(uuid)) {
+                index.remove(uuid);
+                out.writeByte(DELETE);
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+                out.flush();
+                logSize += 17;
+                records++;
+            }
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    @Override
+    public void recordLogin(UUID uuid, String address, long time)
+            throws IOException {
+        logLock.lock();
+        try {
+            out.writeByte(LOGIN);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            out.writeLong(time);
+            out.writeUTF(address);
+            out.flush();
+            logSize += 27 + utfLength(address);
+            records++;
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    private static class LastLogin {
+
+        private final String address;
+        private final long time;
+
+        private LastLogin(String address, long time) {
+            this.address = address;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Gets the last login of every player, read from the log.
+     */
+    private Map<UUID, LastLogin> lastLogins(long limit) throws IOException {
+        final Map<UUID, LastLogin> logins = new HashMap<>();
+        scan(limit, new RecordVisitor() {
+            @Override
+            public void visit(byte type, UUID uuid, String value, long time) {
+                if (type == LOGIN) {
+                    logins.put(uuid, new LastLogin(value, time));
+                } else if (type == DELETE) {
+                    logins.remove(uuid);
+                }
+            }
+        });
+        return logins;
+    }
+
+    @Override
+    public List<UUID> findByAddress(String address) throws IOException {
+        long limit;
+        logLock.lock();
+        try {
+            limit = logSize;
+        } finally {
+            logLock.unlock();
+        }
+        List<UUID> found = new ArrayList<>();
+        compactLock.lock();
+        try {
+            for (Map.Entry<UUID, LastLogin> entry : lastLogins(limit).entrySet()) {
+                if (entry.getValue().address.equals(address)) {
+                    found.add(entry.getKey());
+                }
+            }
+        } finally {
+            compactLock.unlock();
+        }
+        return found;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Compacts the log if it is worth it, at most once every few minutes.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void maintain() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastCompactionCheck < COMPACTION_PERIOD) {
+            return;
+        }
+        lastCompactionCheck = now;
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    /**
+     * Checks if the log holds many more records than the live ones: the hash
+     * and the last login of each player.
+     *
+     * @return true if a compaction is worth it.
+     */
+    public boolean needsCompaction() {
+        logLock.lock();
+        try {
+            return records > 1024 && records > (index.size() + logins) * 2;
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live records. Appends are only blocked
+     * while the snapshot is taken and while the tail written meanwhile is
+     * copied, not while the snapshot is being written.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        compactLock.lock();
+        try {
+            final List<UUID> uuids = new ArrayList<>();
+            final List<String> hashes = new ArrayList<>();
+            long snapshotSize;
+            int snapshotRecords;
+            logLock.lock();
+            try {
+                if (out == null) {
+                    // Already closed.
+                    return;
+                }
+                index.forEach(new CredentialIndex.Visitor() {
+                    @Override
+                    public void visit(UUID uuid, String hash) {
+                        uuids.add(uuid);
+                        hashes.add(hash);
+                    }
+                });
+                snapshotSize = logSize;
+                snapshotRecords = records;
+            } finally {
+                logLock.unlock();
+            }
+
+            Map<UUID, LastLogin> lastLogins = lastLogins(snapshotSize);
+
+            File tmpFile = new File(logFile.getPath() + ".tmp");
+            writeHeader(tmpFile);
+            try (DataOutputStream tmp = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile, true)))) {
+                for (int i = 0; i < uuids.size(); i++) {
+                    tmp.writeByte(PUT);
+                    tmp.writeLong(uuids.get(i).getMostSignificantBits());
+                    tmp.writeLong(uuids.get(i).getLeastSignificantBits());
+                    tmp.writeUTF(hashes.get(i));
+                }
+                for (Map.Entry<UUID, LastLogin> entry : lastLogins.entrySet()) {
+                    tmp.writeByte(LOGIN);
+                    tmp.writeLong(entry.getKey().getMostSignificantBits());
+                    tmp.writeLong(entry.getKey().getLeastSignificantBits());
+                    tmp.writeLong(entry.getValue().time);
+                    tmp.writeUTF(entry.getValue().address);
+                }
+            }
+
+            logLock.lock();
+            try {
+                out.close();
+                // Copies the records appended while the snapshot was written.
+                try (RandomAccessFile src = new RandomAccessFile(logFile, "r");
+                        FileOutputStream dst = new FileOutputStream(tmpFile, true)) {
+                    src.seek(snapshotSize);
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = src.read(buffer)) > 0) {
+                        dst.write(buffer, 0, read);
+                    }
+                }
+                try {
+                    // The old log is only replaced as a whole, never deleted.
+                    Files.move(tmpFile.toPath(), logFile.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException ex) {
+                    out = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(logFile, true)));
+                    throw new IOException("Unable to replace " + logFile, ex);
+                }
+                logSize = logFile.length();
+                records = uuids.size() + lastLogins.size() + records - snapshotRecords;
+                logins = lastLogins.size();
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(logFile, true)));
+            } finally {
+                logLock.unlock();
+            }
+        } finally {
+            compactLock.unlock();
+        }
+    }
+
+    private static int utfLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Flushes and closes the log and its index.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        // Waits for a running compaction, which replaces the log.
+        compactLock.lock();
+        try {
+            logLock.lock();
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                    index.close(logSize, records, logins);
+                }
+            } finally {
+                logLock.unlock();
+            }
+        } finally {
+            compactLock.unlock();
+        }
+    }
+}
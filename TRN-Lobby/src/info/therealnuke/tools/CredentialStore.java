@@ -0,0 +1,109 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Storage of player credentials and session metadata. Every method may be
+ * called from any thread, but reads and writes can block on I/O, so they
+ * should not be called from the main thread.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public interface CredentialStore {
+
+    /**
+     * Opens the storage, creating it if needed.
+     *
+     * @return true if the storage did not exist and has been created.
+     * @throws IOException
+     */
+    boolean open() throws IOException;
+
+    /**
+     * Checks if a player is registered.
+     *
+     * @param uuid
+     * @return
+     * @throws IOException
+     */
+    boolean isRegistered(UUID uuid) throws IOException;
+
+    /**
+     * Gets the stored hash of a player.
+     *
+     * @param uuid
+     * @return The hashed password or null if the player is not registered.
+     * @throws IOException
+     */
+    String getHash(UUID uuid) throws IOException;
+
+    /**
+     * Stores a new hash for a player.
+     *
+     * @param uuid
+     * @param hash
+     * @throws IOException
+     */
+    void setHash(UUID uuid, String hash) throws IOException;
+
+    /**
+     * Removes a player.
+     *
+     * @param uuid
+     * @throws IOException
+     */
+    void remove(UUID uuid) throws IOException;
+
+    /**
+     * Records a successful login.
+     *
+     * @param uuid
+     * @param address IP address the player logged in from.
+     * @param time Login time in milliseconds.
+     * @throws IOException
+     */
+    void recordLogin(UUID uuid, String address, long time) throws IOException;
+
+    /**
+     * Finds the players whose last login was from an IP address.
+     *
+     * @param address
+     * @return
+     * @throws IOException
+     */
+    List<UUID> findByAddress(String address) throws IOException;
+
+    /**
+     * Periodic housekeeping: compaction, flushing of pending writes, etc.
+     *
+     * @throws IOException
+     */
+    void maintain() throws IOException;
+
+    /**
+     * Flushes pending writes and closes the storage.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,170 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches some files of a folder and tells when one of them changed. Editors
+ * often write a file several times in a row, so a file is only reported once
+ * it was not written for the debounce time.
+ * <p>
+ * Changes are reported in the thread of the watcher, never on the main
+ * thread.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class FileWatcher {
+
+    private final Path dir;
+    private final Set<String> fileNames;
+    private final long debounce;
+    private final Listener listener;
+    private WatchService service;
+    private Thread thread;
+
+    public interface Listener {
+
+        /**
+         * Called when a watched file changed.
+         *
+         * @param fileName The name of the file, without folder.
+         */
+        void changed(String fileName);
+    }
+
+    /**
+     * @param dir The folder of the files.
+     * @param fileNames The names of the files watched.
+     * @param debounceMillis Time without writes before a change is reported.
+     * @param listener
+     */
+    public FileWatcher(File dir, Collection<String> fileNames,
+            long debounceMillis, Listener listener) {
+        this.dir = dir.toPath();
+        this.fileNames = new HashSet<>(fileNames);
+        this.debounce = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching the files.
+     *
+     * @throws IOException If the folder cannot be watched.
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        final WatchService watchService = dir.getFileSystem().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        service = watchService;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(watchService);
+            }
+        }, "TRN-Lobby file watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the files. Changes not reported yet are forgotten.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            service.close();
+        } catch (IOException ex) {
+            Logger.getLogger(FileWatcher.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        thread = null;
+        service = null;
+    }
+
+    private void watch(WatchService watchService) {
+        // Changed files and when they were written for the last time.
+        LinkedHashMap<String, Long> pending = new LinkedHashMap<>();
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long wait = debounce;
+                    for (long written : pending.values()) {
+                        wait = Math.min(wait, written + debounce - System.nanoTime());
+                    }
+                    key = watchService.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                }
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Some events were lost, any file may have changed.
+                            for (String fileName : fileNames) {
+                                pending.put(fileName, System.nanoTime());
+                            }
+                        } else {
+                            String fileName = ((Path) event.context()).toString();
+                            if (fileNames.contains(fileName)) {
+                                pending.put(fileName, System.nanoTime());
+                            }
+                        }
+                    }
+                    key.reset();
+                }
+                Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Long> change = it.next();
+                    if (System.nanoTime() - change.getValue() >= debounce) {
+                        it.remove();
+                        try {
+                            listener.changed(change.getKey());
+                        } catch (RuntimeException ex) {
+                            Logger.getLogger(FileWatcher.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // The watcher was stopped.
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Credentials stored in a SQL database through JDBC, usually an embedded one
+ * like SQLite or H2. Writes are kept pending in memory and sent in batches
+ * inside a single transaction.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class JdbcCredentialStore implements CredentialStore {
+
+    private static final String TABLE = "trn_credentials";
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE
+            + " (uuid CHAR(36) NOT NULL PRIMARY KEY, hash VARCHAR(128),"
+            + " last_ip VARCHAR(45), last_login BIGINT)";
+    private static final String CREATE_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + TABLE + "_ip ON " + TABLE + " (last_ip)";
+    private static final String SELECT_HASH = "SELECT hash FROM " + TABLE
+            + " WHERE uuid = ?";
+    private static final String SELECT_BY_IP = "SELECT uuid FROM " + TABLE
+            + " WHERE last_ip = ?";
+    private static final String UPDATE_HASH = "UPDATE " + TABLE
+            + " SET hash = ? WHERE uuid = ?";
+    private static final String INSERT_HASH = "INSERT INTO " + TABLE
+            + " (hash, uuid) VALUES (?, ?)";
+    private static final String UPDATE_LOGIN = "UPDATE " + TABLE
+            + " SET last_ip = ?, last_login = ? WHERE uuid = ?";
+    private static final String DELETE = "DELETE FROM " + TABLE + " WHERE uuid = ?";
+
+    private final ConnectionPool pool;
+    private final int batchSize;
+    private final ReentrantLock pendingLock;
+    private final ReentrantLock flushLock;
+    private Map<UUID, PendingWrite> pending;
+    private Map<UUID, PendingWrite> flushing;
+
+    /**
+     * Changes of a player not written to the database yet.
+     */
+    private static class PendingWrite {
+
+        private boolean deleted;
+        private String hash;
+        private String address;
+        private long time;
+    }
+
+    public JdbcCredentialStore(String url, String user, String password,
+            int poolSize, int batchSize) {
+        this.pool = new ConnectionPool(url, user, password, poolSize);
+        this.batchSize = batchSize;
+        this.pendingLock = new ReentrantLock();
+        this.flushLock = new ReentrantLock();
+        this.pending = new HashMap<>();
+        this.flushing = new HashMap<>();
+    }
+
+    @Override
+    public boolean open() throws IOException {
+        Connection connection = null;
+        try {
+            connection = pool.acquire();
+            DatabaseMetaData meta = connection.getMetaData();
+            boolean exists;
+            try (ResultSet rs = meta.getTables(null, null, TABLE, null)) {
+                exists = rs.next();
+            }
+            if (!exists) {
+                try (ResultSet rs = meta.getTables(null, null, TABLE.toUpperCase(), null)) {
+                    exists = rs.next();
+                }
+            }
+            try (Statement st = connection.createStatement()) {
+                st.executeUpdate(CREATE_TABLE);
+                st.executeUpdate(CREATE_INDEX);
+            }
+            return !exists;
+        } catch (SQLException ex) {
+            throw new IOException(ex);
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+        }
+    }
+
+    /**
+     * Gets the latest pending change of a player, if any.
+     */
+    private PendingWrite getPending(UUID uuid) {
+        pendingLock.lock();
+        try {
+            PendingWrite write = pending.get(uuid);
+            if (write == null || (!write.deleted && write.hash == null)) {
+                PendingWrite older = flushing.get(uuid);
+                if (older != null && (older.deleted || older.hash != null)) {
+                    write = older;
+                }
+            }
+            return write;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    private PendingWrite pendingFor(UUID uuid) {
+        PendingWrite write = pending.get(uuid);
+        if (write == null) {
+            write = new PendingWrite();
+            pending.put(uuid, write);
+        }
+        return write;
+    }
+
+    @Override
+    public boolean isRegistered(UUID uuid) throws IOException {
+        return getHash(uuid) != null;
+    }
+
+    @Override
+    public String getHash(UUID uuid) throws IOException {
+        PendingWrite write = getPending(uuid);
+        if (write != null && write.deleted) {
+            return null;
+        } else if (write != null && write.hash != null) {
+            return write.hash;
+        }
+        Connection connection = null;
+        try {
+            connection = pool.acquire();
+            try (PreparedStatement ps = connection.prepareStatement(SELECT_HASH)) {
+                ps.setString(1, uuid.toString());
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getString(1) : null;
+                }
+            }
+        } catch (SQLException ex) {
+            throw new IOException(ex);
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+        }
+    }
+
+    @Override
+    public void setHash(UUID uuid, String hash) throws IOException {
+        boolean flush;
+        pendingLock.lock();
+        try {
+            PendingWrite write = pendingFor(uuid);
+            write.deleted = false;
+            write.hash = hash;
+            flush = pending.size() >= batchSize;
+        } finally {
+            pendingLock.unlock();
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    @Override
+    public void remove(UUID uuid) throws IOException {
+        pendingLock.lock();
+        try {
+            PendingWrite write = pendingFor(uuid);
+            write.deleted = true;
+            write.hash = null;
+            write.address = null;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    @Override
+    public void recordLogin(UUID uuid, String address, long time)
+            throws IOException {
+        boolean flush;
+        pendingLock.lock();
+        try {
+            PendingWrite write = pendingFor(uuid);
+            if (!write.deleted) {
+                write.address = address;
+                write.time = time;
+            }
+            flush = pending.size() >= batchSize;
+        } finally {
+            pendingLock.unlock();
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    @Override
+    public List<UUID> findByAddress(String address) throws IOException {
+        flush();
+        List<UUID> found = new ArrayList<>();
+        Connection connection = null;
+        try {
+            connection = pool.acquire();
+            try (PreparedStatement ps = connection.prepareStatement(SELECT_BY_IP)) {
+                ps.setString(1, address);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        found.add(UUID.fromString(rs.getString(1)));
+                    }
+                }
+            }
+        } catch (SQLException | IllegalArgumentException ex) {
+            throw new IOException(ex);
+        } finally {
+            if (connection != null) {
+                pool.release(connection);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Writes the pending changes in a single transaction.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        flushLock.lock();
+        try {
+            pendingLock.lock();
+            try {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                flushing = pending;
+                pending = new HashMap<>();
+            } finally {
+                pendingLock.unlock();
+            }
+            Connection connection = null;
+            boolean committed = false;
+            try {
+                connection = pool.acquire();
+                connection.setAutoCommit(false);
+                try {
+                    writeBatch(connection, flushing);
+                    connection.commit();
+                    committed = true;
+                } catch (SQLException | RuntimeException ex) {
+                    connection.rollback();
+                    throw ex;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException ex) {
+                throw new IOException(ex);
+            } finally {
+                if (!committed) {
+                    // Any failure, even getting a connection, keeps the batch.
+                    requeue();
+                }
+                if (connection != null) {
+                    pool.release(connection);
+                }
+            }
+            pendingLock.lock();
+            try {
+                flushing = new HashMap<>();
+            } finally {
+                pendingLock.unlock();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Puts back the changes of a failed batch, unless newer ones exist.
+     */
+    private void requeue() {
+        pendingLock.lock();
+        try {
+            for (Map.Entry<UUID, PendingWrite> entry : flushing.entrySet()) {
+                PendingWrite newer = pending.get(entry.getKey());
+                if (newer == null) {
+                    pending.put(entry.getKey(), entry.getValue());
+                } else if (!newer.deleted && newer.hash == null) {
+                    newer.deleted = entry.getValue().deleted;
+                    newer.hash = entry.getValue().hash;
+                }
+            }
+            flushing = new HashMap<>();
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    private static void writeBatch(Connection connection,
+            Map<UUID, PendingWrite> writes) throws SQLException {
+        List<UUID> updated = new ArrayList<>();
+        try (PreparedStatement delete = connection.prepareStatement(DELETE);
+                PreparedStatement update = connection.prepareStatement(UPDATE_HASH)) {
+            for (Map.Entry<UUID, PendingWrite> entry : writes.entrySet()) {
+                if (entry.getValue().deleted) {
+                    delete.setString(1, entry.getKey().toString());
+                    delete.addBatch();
+                } else if (entry.getValue().hash != null) {
+                    update.setString(1, entry.getValue().hash);
+                    update.setString(2, entry.getKey().toString());
+                    update.addBatch();
+                    updated.add(entry.getKey());
+                }
+            }
+            delete.executeBatch();
+            int[] counts = update.executeBatch();
+
+            // Players without a row yet are inserted.
+            try (PreparedStatement insert = connection.prepareStatement(INSERT_HASH)) {
+                boolean inserts = false;
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        insert.setString(1, writes.get(updated.get(i)).hash);
+                        insert.setString(2, updated.get(i).toString());
+                        insert.addBatch();
+                        inserts = true;
+                    }
+                }
+                if (inserts) {
+                    insert.executeBatch();
+                }
+            }
+        }
+        try (PreparedStatement login = connection.prepareStatement(UPDATE_LOGIN)) {
+            boolean logins = false;
+            for (Map.Entry<UUID, PendingWrite> entry : writes.entrySet()) {
+                if (entry.getValue().address != null) {
+                    login.setString(1, entry.getValue().address);
+                    login.setLong(2, entry.getValue().time);
+                    login.setString(3, entry.getKey().toString());
+                    login.addBatch();
+                    logins = true;
+                }
+            }
+            if (logins) {
+                login.executeBatch();
+            }
+        }
+    }
+
+    @Override
+    public void maintain() throws IOException {
+        flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            pool.close();
+        }
+    }
+}
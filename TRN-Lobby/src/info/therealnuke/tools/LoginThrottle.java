@@ -0,0 +1,132 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free token buckets in a fixed table of stripes. Each key is hashed to
+ * a stripe, which holds the tokens left and the time of the last update packed
+ * in a single long updated by CAS.
+ * <p>
+ * The table never grows: old keys are forgotten as their buckets refill, and
+ * a full bucket is the same as an unused stripe. Keys colliding on a stripe
+ * share its bucket, which can only make the throttle stricter.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class LoginThrottle {
+
+    // Token amounts are stored in sixteenths of a token.
+    private static final int TOKEN_BITS = 12;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long ONE_TOKEN = 16;
+    private static final long BASE_TIME = System.currentTimeMillis();
+
+    private final AtomicLongArray stripes;
+    private final int mask;
+    private final long capacity;
+    private final double refillPerMilli;
+    private final AtomicLong allowed;
+    private final AtomicLong rejected;
+
+    /**
+     * @param stripes Size of the table, rounded up to a power of two.
+     * @param capacity Maximum tokens of a bucket, from 1 to 255.
+     * @param refillPerMinute Tokens given back each minute.
+     */
+    public LoginThrottle(int stripes, int capacity, double refillPerMinute) {
+        int size = Integer.highestOneBit(Math.max(16, stripes - 1) << 1);
+        this.stripes = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.capacity = Math.min(255, Math.max(1, capacity)) * ONE_TOKEN;
+        this.refillPerMilli = refillPerMinute * ONE_TOKEN / 60000d;
+        this.allowed = new AtomicLong();
+        this.rejected = new AtomicLong();
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private long tokensAt(long state, long now) {
+        if (state == 0) {
+            return capacity;
+        }
+        long elapsed = now - (state >>> TOKEN_BITS);
+        long tokens = (state & TOKEN_MASK) + (long) (elapsed * refillPerMilli);
+        return Math.min(capacity, tokens);
+    }
+
+    /**
+     * Takes a token from the bucket of a key.
+     *
+     * @param key
+     * @return false if the bucket is empty and the attempt must be refused.
+     */
+    public boolean tryAcquire(long key) {
+        int index = (int) mix(key) & mask;
+        long now = System.currentTimeMillis() - BASE_TIME;
+        while (true) {
+            long state = stripes.get(index);
+            long tokens = tokensAt(state, now);
+            if (tokens < ONE_TOKEN) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            long next = (now << TOKEN_BITS) | (tokens - ONE_TOKEN);
+            if (stripes.compareAndSet(index, state, next)) {
+                allowed.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public long getAllowed() {
+        return allowed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Counts the buckets not refilled yet.
+     *
+     * @return
+     */
+    public int getActive() {
+        long now = System.currentTimeMillis() - BASE_TIME;
+        int active = 0;
+        for (int i = 0; i < stripes.length(); i++) {
+            if (tokensAt(stripes.get(i), now) < capacity) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    public int getSize() {
+        return stripes.length();
+    }
+}
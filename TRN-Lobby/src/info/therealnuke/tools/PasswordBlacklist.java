@@ -0,0 +1,187 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * List of common or breached passwords compiled into a memory mapped Bloom
+ * filter. Checking a password costs a few memory reads whatever the size of
+ * the list, and the filter takes about 1.2 bytes per password. A false
+ * positive, about 1 in 100, only means that a password is refused.
+ * <p>
+ * The plain text list holds one password per line. It is compiled again when
+ * it changes.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class PasswordBlacklist {
+
+    private static final int MAGIC = 0x54524E42;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int HASHES = 7;
+    private static final int BITS_PER_ENTRY = 10;
+
+    private final File sourceFile;
+    private final File filterFile;
+    private volatile MappedByteBuffer filter;
+
+    public PasswordBlacklist(File sourceFile, File filterFile) {
+        this.sourceFile = sourceFile;
+        this.filterFile = filterFile;
+    }
+
+    /**
+     * Maps the compiled filter, compiling it first if the list is newer. It
+     * can take a while for big lists, so it must not run on the main thread.
+     *
+     * @return The number of passwords in the filter, or -1 if there is no
+     * list.
+     * @throws IOException
+     */
+    public long load() throws IOException {
+        if (!sourceFile.exists()) {
+            return -1;
+        }
+        RandomAccessFile raf = new RandomAccessFile(filterFile, "rw");
+        try {
+            if (!isCompiled(raf)) {
+                compile(raf);
+            }
+            MappedByteBuffer buffer = raf.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            filter = buffer;
+            return buffer.getLong(32);
+        } finally {
+            // The mapping stays valid after closing the file.
+            raf.close();
+        }
+    }
+
+    private boolean isCompiled(RandomAccessFile raf) throws IOException {
+        if (raf.length() < HEADER_SIZE) {
+            return false;
+        }
+        raf.seek(0);
+        return raf.readInt() == MAGIC && raf.readInt() == VERSION
+                && raf.length() == HEADER_SIZE + raf.readLong() / 8
+                && raf.readLong() == sourceFile.length()
+                && raf.readLong() == sourceFile.lastModified();
+    }
+
+    private void compile(RandomAccessFile raf) throws IOException {
+        long entries = 0;
+        try (BufferedReader reader = open()) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    entries++;
+                }
+            }
+        }
+        // Rounded up to whole longs.
+        long bits = Math.max(64, (entries * BITS_PER_ENTRY + 63) / 64 * 64);
+        raf.setLength(0);
+        raf.setLength(HEADER_SIZE + bits / 8);
+        MappedByteBuffer buffer = raf.getChannel()
+                .map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + bits / 8);
+        try (BufferedReader reader = open()) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    long hash = hash(line.toLowerCase());
+                    for (int i = 0; i < HASHES; i++) {
+                        long bit = bitIndex(hash, i, bits);
+                        int offset = HEADER_SIZE + (int) (bit >>> 3);
+                        buffer.put(offset, (byte) (buffer.get(offset) | (1 << (bit & 7))));
+                    }
+                }
+            }
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, bits);
+        buffer.putLong(16, sourceFile.length());
+        buffer.putLong(24, sourceFile.lastModified());
+        buffer.putLong(32, entries);
+        buffer.force();
+    }
+
+    private BufferedReader open() throws IOException {
+        return new BufferedReader(new InputStreamReader(
+                new FileInputStream(sourceFile), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the chars of a password.
+     */
+    private static long hash(String password) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < password.length(); i++) {
+            hash ^= password.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    private static long bitIndex(long hash, int i, long bits) {
+        long h1 = hash & 0xFFFFFFFFL;
+        long h2 = hash >>> 32;
+        return ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+    }
+
+    /**
+     * Checks if a password is in the list. It does not allocate and can be
+     * called from any thread.
+     *
+     * @param password The password already in lower case.
+     * @return false if the password is surely not in the list.
+     */
+    public boolean contains(String password) {
+        MappedByteBuffer buffer = filter;
+        if (buffer == null) {
+            return false;
+        }
+        long bits = buffer.getLong(8);
+        long hash = hash(password);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = bitIndex(hash, i, bits);
+            if ((buffer.get(HEADER_SIZE + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops using the filter.
+     */
+    public void close() {
+        filter = null;
+    }
+}
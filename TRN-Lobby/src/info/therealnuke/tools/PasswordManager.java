@@ -1,7 +1,7 @@
 /*
  *            This file is part of TRN-Lobby.
  *
- *  TRN-Lobby is free software: you can redistribute it and/or 
+ *  TRN-Lobby is free software: you can redistribute it and/or
  *  modify it under the terms of the GNU General Public License as published by
  *  the Free Software Foundation, either version 3 of the License, or
  *  (at your option) any later version.
@@ -12,17 +12,22 @@
  *  GNU General Public License for more details.
  *
  *  You should have received a copy of the GNU General Public License
- *  along with  TRN-Lobby. 
+ *  along with  TRN-Lobby.
  *  If not, see <http://www.gnu.org/licenses/>.
- * 
+ *
  */
 package info.therealnuke.tools;
 
-import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 /**
  *
@@ -30,13 +35,71 @@ import java.util.logging.Logger;
  */
 public class PasswordManager {
 
+    private static final String PBKDF2_PREFIX = "pbkdf2";
+    private static final int SALT_BYTES = 16;
+    private static final int KEY_BITS = 256;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Digests are not thread safe, but they are reusable by the same thread.
+    private static final ThreadLocal<MessageDigest> MD5
+            = new ThreadLocal<MessageDigest>() {
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance("MD5");
+                    } catch (NoSuchAlgorithmException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            };
+
+    private static final ThreadLocal<SecretKeyFactory> PBKDF2
+            = new ThreadLocal<SecretKeyFactory>() {
+                @Override
+                protected SecretKeyFactory initialValue() {
+                    try {
+                        return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+                    } catch (NoSuchAlgorithmException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            };
+
     public static String getHash(String stringToHash, String digestAlgoritm)
             throws NoSuchAlgorithmException {
-        MessageDigest mdEnc = MessageDigest.getInstance(digestAlgoritm);
+        MessageDigest mdEnc = "MD5".equals(digestAlgoritm)
+                ? MD5.get() : MessageDigest.getInstance(digestAlgoritm);
+        mdEnc.reset();
         mdEnc.update(stringToHash.getBytes(), 0, stringToHash.length());
-        return new BigInteger(1, mdEnc.digest()).toString(16);
+        return toHex(mdEnc.digest());
+    }
+
+    /**
+     * Hex encodes a digest the same way BigInteger does, without leading
+     * zeros, as the stored legacy hashes were encoded that way.
+     */
+    private static String toHex(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+        int start = 0;
+        while (start < chars.length - 1 && chars[start] == '0') {
+            start++;
+        }
+        return new String(chars, start, chars.length - start);
     }
 
+    /**
+     * Gets the legacy MD5 hash of a password.
+     *
+     * @param salt
+     * @param password
+     * @return
+     */
     public static String getHashedPassword(String salt, String password) {
         String hash = null;
         try {
@@ -47,4 +110,96 @@ public class PasswordManager {
         return hash;
     }
 
+    /**
+     * Hashes a password with PBKDF2 and a random salt. This is slow on
+     * purpose, so it must not be called from the main thread.
+     *
+     * @param password
+     * @param iterations Work factor.
+     * @return The hash in the form pbkdf2$iterations$salt$key.
+     */
+    public static String hashPassword(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PBKDF2_PREFIX + "$" + iterations + "$" + encoder.encodeToString(salt)
+                + "$" + encoder.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+                iterations, KEY_BITS);
+        try {
+            return PBKDF2.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Checks if a stored hash was made with the old MD5 scheme.
+     *
+     * @param storedHash
+     * @return
+     */
+    public static boolean isLegacyHash(String storedHash) {
+        return !storedHash.startsWith(PBKDF2_PREFIX + "$");
+    }
+
+    /**
+     * Gets the work factor of a stored hash.
+     *
+     * @param storedHash
+     * @return The iterations or 0 for legacy or malformed hashes.
+     */
+    public static int getIterations(String storedHash) {
+        int iterations = 0;
+        if (!isLegacyHash(storedHash)) {
+            String[] parts = storedHash.split("\\$");
+            if (parts.length == 4) {
+                try {
+                    iterations = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException ex) {
+                    iterations = 0;
+                }
+            }
+        }
+        return iterations;
+    }
+
+    /**
+     * Checks a password against a stored hash of any scheme. This is slow on
+     * purpose, so it must not be called from the main thread.
+     *
+     * @param salt Salt of the legacy scheme, the player UUID.
+     * @param password Typed password.
+     * @param storedHash
+     * @return true if the password matches.
+     */
+    public static boolean verifyPassword(String salt, String password,
+            String storedHash) {
+        boolean ret = false;
+        if (isLegacyHash(storedHash)) {
+            String hash = getHashedPassword(salt, password);
+            ret = hash != null && MessageDigest.isEqual(
+                    hash.getBytes(StandardCharsets.ISO_8859_1),
+                    storedHash.getBytes(StandardCharsets.ISO_8859_1));
+        } else {
+            String[] parts = storedHash.split("\\$");
+            int iterations = getIterations(storedHash);
+            if (iterations > 0) {
+                Base64.Decoder decoder = Base64.getDecoder();
+                try {
+                    ret = MessageDigest.isEqual(decoder.decode(parts[3]),
+                            pbkdf2(password, decoder.decode(parts[2]), iterations));
+                } catch (IllegalArgumentException ex) {
+                    ret = false;
+                }
+            }
+        }
+        return ret;
+    }
+
 }
@@ -0,0 +1,156 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks in a shared pool of threads, but the tasks of the same key run
+ * one after another in the order they were submitted. Each key has its own
+ * small mailbox, so different keys never wait for each other.
+ * <p>
+ * A mailbox only exists while it has tasks to run.
+ *
+ * @param <K> Type of the keys.
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class SerialExecutor<K> {
+
+    private final ConcurrentHashMap<K, Mailbox> mailboxes;
+    private final ExecutorService pool;
+
+    private class Mailbox implements Runnable {
+
+        private final K key;
+        private final ArrayDeque<Runnable> tasks;
+        private boolean scheduled;
+        private boolean closed;
+
+        private Mailbox(K key) {
+            this.key = key;
+            this.tasks = new ArrayDeque<>();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        closed = true;
+                        mailboxes.remove(key, this);
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(SerialExecutor.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param name Prefix of the thread names.
+     * @param threads Size of the shared pool.
+     */
+    public SerialExecutor(final String name, int threads) {
+        this.mailboxes = new ConcurrentHashMap<>();
+        final AtomicInteger threadId = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + " " + threadId.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Queues a task after the pending tasks of the same key.
+     *
+     * @param key
+     * @param task
+     */
+    public void execute(K key, Runnable task) {
+        while (true) {
+            Mailbox mailbox = mailboxes.get(key);
+            if (mailbox == null) {
+                Mailbox created = new Mailbox(key);
+                mailbox = mailboxes.putIfAbsent(key, created);
+                if (mailbox == null) {
+                    mailbox = created;
+                }
+            }
+            boolean schedule;
+            synchronized (mailbox) {
+                if (mailbox.closed) {
+                    // It was drained and removed meanwhile, try a new one.
+                    continue;
+                }
+                mailbox.tasks.add(task);
+                schedule = !mailbox.scheduled;
+                mailbox.scheduled = true;
+            }
+            if (schedule) {
+                pool.execute(mailbox);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Gets the number of keys with pending tasks.
+     *
+     * @return
+     */
+    public int getActive() {
+        return mailboxes.size();
+    }
+
+    /**
+     * Stops taking tasks and waits for the pending ones.
+     *
+     * @param timeout Maximum wait in milliseconds.
+     * @return false if some tasks were still running after the timeout.
+     */
+    public boolean shutdown(long timeout) {
+        pool.shutdown();
+        try {
+            return pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
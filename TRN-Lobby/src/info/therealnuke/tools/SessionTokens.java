@@ -0,0 +1,261 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signed sessions of logged in players, so they can be logged in again after
+ * a restart without reading their credentials. A session binds the player
+ * UUID, the IP address and an expiry time, signed with HMAC-SHA256 and a
+ * secret key kept in its own file.
+ * <p>
+ * The whole table is kept in memory and written to disk when it changes.
+ * Sessions are checked against their signature when they are used, so a
+ * tampered table file is worthless without the key.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class SessionTokens {
+
+    private static final int MAGIC = 0x54524E53;
+    private static final int VERSION = 1;
+    private static final int KEY_BYTES = 32;
+    private static final int MAC_BYTES = 16;
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final File keyFile;
+    private final File tableFile;
+    private final ConcurrentHashMap<UUID, Session> sessions;
+    private volatile boolean dirty;
+    private ThreadLocal<Mac> mac;
+
+    private static class Session {
+
+        private final byte[] address;
+        private final long expires;
+        private final byte[] signature;
+
+        private Session(byte[] address, long expires, byte[] signature) {
+            this.address = address;
+            this.expires = expires;
+            this.signature = signature;
+        }
+    }
+
+    public SessionTokens(File keyFile, File tableFile) {
+        this.keyFile = keyFile;
+        this.tableFile = tableFile;
+        this.sessions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Reads the key, creating it if needed, and loads the sessions not
+     * expired yet.
+     *
+     * @return The number of sessions loaded.
+     * @throws IOException
+     */
+    public int load() throws IOException {
+        final SecretKeySpec key = new SecretKeySpec(readKey(), ALGORITHM);
+        mac = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac ret = Mac.getInstance(ALGORITHM);
+                    ret.init(key);
+                    return ret;
+                } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+        sessions.clear();
+        if (tableFile.exists()) {
+            long now = System.currentTimeMillis();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(tableFile)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Invalid session file " + tableFile.getName());
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    byte[] address = new byte[in.readUnsignedByte()];
+                    in.readFully(address);
+                    long expires = in.readLong();
+                    byte[] signature = new byte[MAC_BYTES];
+                    in.readFully(signature);
+                    if (expires > now) {
+                        sessions.put(uuid, new Session(address, expires, signature));
+                    }
+                }
+            } catch (EOFException ex) {
+                throw new IOException("Truncated session file " + tableFile.getName(), ex);
+            }
+        }
+        dirty = false;
+        return sessions.size();
+    }
+
+    private byte[] readKey() throws IOException {
+        if (keyFile.exists() && keyFile.length() == KEY_BYTES) {
+            return Files.readAllBytes(keyFile.toPath());
+        }
+        byte[] key = new byte[KEY_BYTES];
+        new SecureRandom().nextBytes(key);
+        try (FileOutputStream out = new FileOutputStream(keyFile)) {
+            out.write(key);
+        }
+        // Only the server user should be able to read it.
+        keyFile.setReadable(false, false);
+        keyFile.setReadable(true, true);
+        return key;
+    }
+
+    private byte[] sign(UUID uuid, byte[] address, long expires) {
+        Mac hmac = mac.get();
+        hmac.reset();
+        hmac.update(longBytes(uuid.getMostSignificantBits()));
+        hmac.update(longBytes(uuid.getLeastSignificantBits()));
+        hmac.update(address);
+        hmac.update(longBytes(expires));
+        return Arrays.copyOf(hmac.doFinal(), MAC_BYTES);
+    }
+
+    private static byte[] longBytes(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+
+    /**
+     * Starts or renews the session of a player.
+     *
+     * @param uuid
+     * @param address
+     * @param expires Expiry time in milliseconds.
+     */
+    public void issue(UUID uuid, InetAddress address, long expires) {
+        byte[] bytes = address.getAddress();
+        sessions.put(uuid, new Session(bytes, expires, sign(uuid, bytes, expires)));
+        dirty = true;
+    }
+
+    /**
+     * Checks if a player has a valid session from an IP address. It only
+     * reads memory and can be called from any thread.
+     *
+     * @param uuid
+     * @param address
+     * @return
+     */
+    public boolean isValid(UUID uuid, InetAddress address) {
+        Session session = sessions.get(uuid);
+        return session != null
+                && session.expires > System.currentTimeMillis()
+                && Arrays.equals(session.address, address.getAddress())
+                && MessageDigest.isEqual(session.signature,
+                        sign(uuid, session.address, session.expires));
+    }
+
+    /**
+     * Ends the session of a player.
+     *
+     * @param uuid
+     */
+    public void revoke(UUID uuid) {
+        if (sessions.remove(uuid) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the table if it has changed, dropping the expired sessions.
+     * Saves from the maintenance task and from the shutdown never write the
+     * temporary file at the same time.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        long now = System.currentTimeMillis();
+        for (Iterator<Session> it = sessions.values().iterator(); it.hasNext();) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+        File tmpFile = new File(tableFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)))) {
+            // A copy, so the count matches the entries written.
+            Map<UUID, Session> snapshot = new HashMap<>(sessions);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<UUID, Session> entry : snapshot.entrySet()) {
+                Session session = entry.getValue();
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                out.writeByte(session.address.length);
+                out.write(session.address);
+                out.writeLong(session.expires);
+                out.write(session.signature);
+            }
+        } catch (IOException ex) {
+            dirty = true;
+            throw ex;
+        }
+        Files.move(tmpFile.toPath(), tableFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *            This file is part of TRN-Lobby.
+ *
+ *  TRN-Lobby is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  TRN-Lobby is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with  TRN-Lobby.
+ *  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package info.therealnuke.tools;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * The original storage: one YAML file per player in the password directory.
+ * Simple to edit by hand, but every lookup opens and parses a file.
+ *
+ * @author TheRealNuke <therealnuke@gmail.com>
+ */
+public class YamlCredentialStore implements CredentialStore {
+
+    private final File passwordDir;
+    private final ReentrantLock filesLock;
+
+    public YamlCredentialStore(File passwordDir) {
+        this.passwordDir = passwordDir;
+        this.filesLock = new ReentrantLock();
+    }
+
+    private File getUserFile(UUID uuid) {
+        return new File(passwordDir, uuid.toString() + ".yml");
+    }
+
+    private YamlConfiguration load(File userFile) throws IOException {
+        YamlConfiguration passYml = new YamlConfiguration();
+        if (userFile.exists()) {
+            try {
+                passYml.load(userFile);
+            } catch (InvalidConfigurationException ex) {
+                throw new IOException("Invalid player file " + userFile, ex);
+            }
+        }
+        return passYml;
+    }
+
+    private void update(UUID uuid, String key, Object value, String key2,
+            Object value2) throws IOException {
+        filesLock.lock();
+        try {
+            File userFile = getUserFile(uuid);
+            YamlConfiguration passYml = load(userFile);
+            passYml.set(key, value);
+            if (key2 != null) {
+                passYml.set(key2, value2);
+            }
+            passYml.save(userFile);
+        } finally {
+            filesLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean open() throws IOException {
+        return !passwordDir.exists() && passwordDir.mkdirs();
+    }
+
+    @Override
+    public boolean isRegistered(UUID uuid) {
+        return getUserFile(uuid).exists();
+    }
+
+    @Override
+    public String getHash(UUID uuid) throws IOException {
+        File userFile = getUserFile(uuid);
+        return userFile.exists() ? load(userFile).getString("password") : null;
+    }
+
+    @Override
+    public void setHash(UUID uuid, String hash) throws IOException {
+        update(uuid, "password", hash, null, null);
+    }
+
+    @Override
+    public void remove(UUID uuid) throws IOException {
+        File userFile = getUserFile(uuid);
+        if (userFile.exists() && !userFile.delete()) {
+            throw new IOException("Unable to delete " + userFile);
+        }
+    }
+
+    @Override
+    public void recordLogin(UUID uuid, String address, long time)
+            throws IOException {
+        if (isRegistered(uuid)) {
+            update(uuid, "last-ip", address, "last-login", time);
+        }
+    }
+
+    @Override
+    public List<UUID> findByAddress(String address) throws IOException {
+        List<UUID> found = new ArrayList<>();
+        File[] userFiles = passwordDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".yml");
+            }
+        });
+        if (userFiles != null) {
+            for (File userFile : userFiles) {
+                String name = userFile.getName();
+                if (address.equals(load(userFile).getString("last-ip"))) {
+                    try {
+                        found.add(UUID.fromString(name.substring(0, name.length() - 4)));
+                    } catch (IllegalArgumentException ex) {
+                        // Not a player file.
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void maintain() {
+        // Every write goes straight to its file.
+    }
+
+    @Override
+    public void close() {
+        // Nothing is kept open.
+    }
+}